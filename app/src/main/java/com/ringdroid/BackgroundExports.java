@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid;
+
+import java.io.File;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.util.Log;
+
+import com.ringdroid.soundfile.ExportQueue;
+import com.ringdroid.soundfile.SoundFile;
+
+// Selections exported in the background (see RingdroidEditActivity.exportInBackground()), so
+// that several clips can be queued while editing, e.g. to make a pack of ringtones. The exports
+// are run by an ExportQueue shared by the whole app, and their progress is shown in a
+// notification.
+class BackgroundExports implements ExportQueue.Listener {
+    private static final int NOTIFICATION_ID = 1;
+
+    private static BackgroundExports instance;
+
+    private final Context context;
+    private final ExportQueue queue;
+    private int numFailed;  // jobs failed since the queue was last empty.
+    private int numCancelled;  // jobs cancelled since the queue was last empty.
+
+    private BackgroundExports(Context context) {
+        this.context = context.getApplicationContext();
+        queue = new ExportQueue(ExportQueue.getDefaultNumWorkers(), this);
+    }
+
+    static synchronized BackgroundExports get(Context context) {
+        if (instance == null) {
+            instance = new BackgroundExports(context);
+        }
+        return instance;
+    }
+
+    // Export [startTime, endTime) (in seconds) of source to outputFile, as an .m4a file, an .mp3
+    // file (frames copied from an MP3 source) or a .wav file, depending on the name of
+    // outputFile. The source is decoded by the queue.
+    void submit(File source, float startTime, float endTime, File outputFile) {
+        submit(new ExportQueue.Job(source, getFormat(outputFile)), startTime, endTime,
+                outputFile);
+    }
+
+    // Same as above, for a source already fully decoded, e.g. by the editor: it is not decoded
+    // again.
+    void submit(SoundFile soundFile, float startTime, float endTime, File outputFile) {
+        submit(new ExportQueue.Job(soundFile, getFormat(outputFile)), startTime, endTime,
+                outputFile);
+    }
+
+    private void submit(ExportQueue.Job job, float startTime, float endTime, File outputFile) {
+        queue.submit(job.addRange(startTime, endTime, outputFile));
+        onQueueProgress(queue.getProgress());
+    }
+
+    private static int getFormat(File outputFile) {
+        String name = outputFile.getName();
+        if (name.endsWith(".m4a")) {
+            return ExportQueue.FORMAT_M4A;
+        }
+        if (name.endsWith(".mp3")) {
+            return ExportQueue.FORMAT_MP3;
+        }
+        return ExportQueue.FORMAT_WAV;
+    }
+
+    public void onJobProgress(ExportQueue.Job job, double fraction) {
+    }
+
+    public void onJobFinished(ExportQueue.Job job) {
+        File outputFile = job.getOutputFile(0);
+        if (job.getState() == ExportQueue.STATE_DONE) {
+            Log.i("BackgroundExports", "onJobFinished() exported " + outputFile + " in " +
+                    job.getElapsedTimeMs() + " ms (" + (long)job.getThroughput() + " B/s)");
+            MediaScannerConnection.scanFile(
+                    context, new String[] {outputFile.getPath()}, null, null);
+            return;
+        }
+        // Remove the name reserved for the output file (see
+        // RingdroidEditActivity.exportInBackground()), if the job did not get to write it.
+        if (outputFile.length() == 0) {
+            outputFile.delete();
+        }
+        synchronized (this) {
+            if (job.getState() == ExportQueue.STATE_CANCELLED) {
+                numCancelled++;
+            } else {
+                numFailed++;
+            }
+        }
+    }
+
+    public synchronized void onQueueProgress(double fraction) {
+        int numJobs = queue.getNumUnfinishedJobs();
+        Notification.Builder builder = new Notification.Builder(context)
+                .setContentTitle(context.getString(R.string.background_export_title));
+        if (numJobs > 0) {
+            builder.setSmallIcon(android.R.drawable.stat_sys_download)
+                    .setContentText(context.getResources().getQuantityString(
+                            R.plurals.background_export_progress, numJobs, numJobs))
+                    .setProgress(1000, (int)(fraction * 1000), false)
+                    .setOngoing(true);
+        } else {
+            String text;
+            if (numFailed > 0) {
+                text = context.getResources().getQuantityString(
+                        R.plurals.background_export_failed, numFailed, numFailed);
+            } else if (numCancelled > 0) {
+                text = context.getResources().getQuantityString(
+                        R.plurals.background_export_cancelled, numCancelled, numCancelled);
+            } else {
+                text = context.getString(R.string.background_export_done);
+            }
+            builder.setSmallIcon(android.R.drawable.stat_sys_download_done)
+                    .setContentText(text)
+                    .setAutoCancel(true);
+            numFailed = 0;
+            numCancelled = 0;
+        }
+        NotificationManager manager =
+                (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, builder.build());
+    }
+}
@@ -27,6 +27,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Spinner;
 
@@ -41,6 +42,7 @@ public class FileSaveDialog extends Dialog {
 
     private Spinner typeSpinner;
     private EditText fileName;
+    private CheckBox wavCopy;
     private Message messageResponse;
     private String standardName;
     private ArrayList<String> typeArray;
@@ -84,6 +86,7 @@ public class FileSaveDialog extends Dialog {
         typeArray.add(resources.getString(R.string.type_ringtone));
 
         fileName = (EditText)findViewById(R.id.filename);
+        wavCopy = (CheckBox)findViewById(R.id.save_wav_copy);
         standardName = originalName;
 
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(
@@ -136,6 +139,7 @@ public class FileSaveDialog extends Dialog {
             public void onClick(View view) {
                 messageResponse.obj = fileName.getText();
                 messageResponse.arg1 = typeSpinner.getSelectedItemPosition();
+                messageResponse.arg2 = wavCopy.isChecked() ? 1 : 0;
                 messageResponse.sendToTarget();
                 dismiss();
             }
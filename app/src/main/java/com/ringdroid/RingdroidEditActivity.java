@@ -25,6 +25,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.media.MediaScannerConnection;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Bundle;
@@ -47,9 +48,15 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.ringdroid.soundfile.FanOutExporter;
+import com.ringdroid.soundfile.SelectionPreEncoder;
 import com.ringdroid.soundfile.SoundFile;
+import com.ringdroid.soundfile.SoundFileValidator;
+import com.ringdroid.soundfile.WaveformPeaks;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
@@ -65,6 +72,7 @@ public class RingdroidEditActivity extends Activity
                WaveformView.WaveformListener
 {
     private long loadingLastUpdateTime;
+    private long decodingLastUpdateTime;
     private boolean loadingKeepGoing;
     private long recordingLastUpdateTime;
     private boolean recordingKeepGoing;
@@ -75,6 +83,8 @@ public class RingdroidEditActivity extends Activity
     private AlertDialog recordConfirmationDialog;
     private ProgressDialog progressDialog;
     private SoundFile soundFile;
+    private boolean soundFileDecoded;  // set once soundFile is fully decoded.
+    private WaveformPeaks peaks;
     private File file;
     private String filename;
     private String artist;
@@ -125,6 +135,16 @@ public class RingdroidEditActivity extends Activity
     private Thread recordAudioThread;
     private Thread saveSoundFileThread;
 
+    // Encodes the selection in the background, once the markers have stopped moving for
+    // PRE_ENCODE_DELAY_MS, so that saving it is quick. null while the file is being loaded, and
+    // for files whose selection is copied rather than encoded (see saveRingtone()).
+    private SelectionPreEncoder preEncoder;
+    private int preEncodeStartPos;
+    private int preEncodeEndPos;
+    private long selectionChangeTime;
+    private boolean preEncodeStarted;
+    private static final int PRE_ENCODE_DELAY_MS = 1000;
+
     // Result codes
     private static final int REQUEST_CODE_CHOOSE_CONTACT = 1;
 
@@ -168,6 +188,11 @@ public class RingdroidEditActivity extends Activity
 
         handler = new Handler();
 
+        // Keep the decoded samples out of the Java heap.
+        SoundFile.setCacheDirectory(getCacheDir());
+        // Decode long files with up to one codec per core.
+        SoundFile.setNumDecodeThreads(Math.min(4, Runtime.getRuntime().availableProcessors()));
+
         loadGui();
 
         handler.postDelayed(timerRunnable, 100);
@@ -202,6 +227,10 @@ public class RingdroidEditActivity extends Activity
         loadSoundFileThread = null;
         recordAudioThread = null;
         saveSoundFileThread = null;
+        if (preEncoder != null) {
+            preEncoder.release();
+            preEncoder = null;
+        }
         if(progressDialog != null) {
             progressDialog.dismiss();
             progressDialog = null;
@@ -273,6 +302,8 @@ public class RingdroidEditActivity extends Activity
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         menu.findItem(R.id.action_save).setVisible(true);
+        // Recordings have no source file to export from.
+        menu.findItem(R.id.action_export_background).setVisible(file != null);
         menu.findItem(R.id.action_reset).setVisible(true);
         menu.findItem(R.id.action_about).setVisible(true);
         return true;
@@ -282,7 +313,10 @@ public class RingdroidEditActivity extends Activity
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
         case R.id.action_save:
-            onSave();
+            onSave(false);
+            return true;
+        case R.id.action_export_background:
+            onSave(true);
             return true;
         case R.id.action_reset:
             resetPositions();
@@ -585,6 +619,7 @@ public class RingdroidEditActivity extends Activity
         lastDisplayedEndPos = -1;
 
         if (soundFile != null && !waveformView.hasSoundFile()) {
+            waveformView.setPeaks(peaks);
             waveformView.setSoundFile(soundFile);
             waveformView.recomputeHeights(density);
             maxPos = waveformView.maxPos();
@@ -623,6 +658,7 @@ public class RingdroidEditActivity extends Activity
 
         loadingLastUpdateTime = getCurrentTime();
         loadingKeepGoing = true;
+        soundFileDecoded = false;
         finishActivity = false;
         progressDialog = new ProgressDialog(RingdroidEditActivity.this);
         progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
@@ -650,13 +686,47 @@ public class RingdroidEditActivity extends Activity
                 }
             };
 
+        // Open the editor as soon as some audio has been decoded, then keep extending the
+        // waveform while the rest of the file is being decoded.
+        // onSamplesDecoded() is called by the decoding thread (possibly a codec callback thread),
+        // so soundFile and player are only set on the UI thread.
+        decodingLastUpdateTime = loadingLastUpdateTime;
+        final SoundFile.DecodeListener decodeListener =
+            new SoundFile.DecodeListener() {
+                public void onSamplesDecoded(final SoundFile decodingFile) {
+                    long now = getCurrentTime();
+                    if (now - decodingLastUpdateTime < 500 || decodingFile.getNumFrames() == 0) {
+                        return;
+                    }
+                    decodingLastUpdateTime = now;
+                    Runnable runnable = new Runnable() {
+                        public void run() {
+                            if (player == null) {
+                                soundFile = decodingFile;
+                                player = new SamplePlayer(soundFile);
+                                progressDialog.dismiss();
+                                finishOpeningSoundFile();
+                            } else {
+                                updateDecodedSoundFile();
+                            }
+                        }
+                    };
+                    handler.post(runnable);
+                }
+            };
+
         // Load the sound file in a background thread
         loadSoundFileThread = new Thread() {
             public void run() {
+                final SoundFile loadedFile;
                 try {
-                    soundFile = SoundFile.create(file.getAbsolutePath(), listener);
+                    // If the file was decoded before, its whole waveform can be shown
+                    // right away, even though the file is decoded again.
+                    peaks = SoundFile.getPeaks(file.getAbsolutePath());
+                    loadedFile = SoundFile.create(
+                            file.getAbsolutePath(), listener, decodeListener);
 
-                    if (soundFile == null) {
+                    if (loadedFile == null) {
                         progressDialog.dismiss();
                         String name = file.getName().toLowerCase();
                         String[] components = name.split("\\.");
@@ -678,7 +748,6 @@ public class RingdroidEditActivity extends Activity
                         handler.post(runnable);
                         return;
                     }
-                    player = new SamplePlayer(soundFile);
                 } catch (final Exception e) {
                     progressDialog.dismiss();
                     infoContent = e.toString();
@@ -698,9 +767,21 @@ public class RingdroidEditActivity extends Activity
                 }
                 progressDialog.dismiss();
                 if (loadingKeepGoing) {
+                    // Looked up here rather than by createPreEncoder(), as it may read the file.
+                    loadedFile.canCopyFrames();
+                    // Posted after any runnable of decodeListener, so player is only null here if
+                    // the editor was not opened while decoding.
                     Runnable runnable = new Runnable() {
                         public void run() {
-                            finishOpeningSoundFile();
+                            if (player != null) {
+                                updateDecodedSoundFile();
+                            } else {
+                                soundFile = loadedFile;
+                                player = new SamplePlayer(soundFile);
+                                finishOpeningSoundFile();
+                            }
+                            soundFileDecoded = true;
+                            createPreEncoder();
                         }
                     };
                     handler.post(runnable);
@@ -833,6 +914,7 @@ public class RingdroidEditActivity extends Activity
                     Runnable runnable = new Runnable() {
                         public void run() {
                             finishOpeningSoundFile();
+                            createPreEncoder();
                         }
                     };
                     handler.post(runnable);
@@ -843,6 +925,7 @@ public class RingdroidEditActivity extends Activity
     }
 
     private void finishOpeningSoundFile() {
+        waveformView.setPeaks(peaks);
         waveformView.setSoundFile(soundFile);
         waveformView.recomputeHeights(density);
 
@@ -859,6 +942,22 @@ public class RingdroidEditActivity extends Activity
         if (endPos > maxPos)
             endPos = maxPos;
 
+        updateCaption();
+        updateDisplay();
+    }
+
+    /**
+     * Called while the sound file is still being decoded (and once more
+     * when it's done), to show the audio decoded since the last call.
+     */
+    private void updateDecodedSoundFile() {
+        waveformView.updateSoundFile();
+        maxPos = waveformView.maxPos();
+        updateCaption();
+        updateDisplay();
+    }
+
+    private void updateCaption() {
         caption =
             soundFile.getFiletype() + ", " +
             soundFile.getSampleRate() + " Hz, " +
@@ -866,8 +965,6 @@ public class RingdroidEditActivity extends Activity
             formatTime(maxPos) + " " +
             getResources().getString(R.string.time_seconds);
         info.setText(caption);
-
-        updateDisplay();
     }
 
     private synchronized void updateDisplay() {
@@ -1008,10 +1105,45 @@ public class RingdroidEditActivity extends Activity
                     lastDisplayedEndPos = endPos;
                 }
 
+                updatePreEncoding();
+
                 handler.postDelayed(timerRunnable, 100);
             }
         };
 
+    // Called once the whole file has been decoded (or recorded).
+    private void createPreEncoder() {
+        // MP3 and AAC LC files are cut without re-encoding them.
+        if (preEncoder != null || soundFile.canCopyFrames()) {
+            return;
+        }
+        preEncoder = new SelectionPreEncoder(soundFile, new File(getCacheDir(), "selections"));
+        preEncodeStartPos = -1;
+        preEncodeEndPos = -1;
+    }
+
+    // Cancel the encoding of the selection as soon as a marker moves, and encode the new
+    // selection once the markers have stopped moving for a moment.
+    private void updatePreEncoding() {
+        if (preEncoder == null) {
+            return;
+        }
+        if (startPos != preEncodeStartPos || endPos != preEncodeEndPos) {
+            preEncoder.cancel();
+            preEncodeStartPos = startPos;
+            preEncodeEndPos = endPos;
+            selectionChangeTime = getCurrentTime();
+            preEncodeStarted = false;
+        } else if (!preEncodeStarted &&
+                getCurrentTime() - selectionChangeTime >= PRE_ENCODE_DELAY_MS) {
+            // The same bounds as saveRingtone().
+            int startFrame = waveformView.secondsToFrames(waveformView.pixelsToSeconds(startPos));
+            int endFrame = waveformView.secondsToFrames(waveformView.pixelsToSeconds(endPos));
+            preEncoder.start(startFrame, endFrame - startFrame);
+            preEncodeStarted = true;
+        }
+    }
+
     private void enableDisableButtons() {
         if (isPlaying) {
             playButton.setImageResource(android.R.drawable.ic_media_pause);
@@ -1242,7 +1374,9 @@ public class RingdroidEditActivity extends Activity
         return path;
     }
 
-    private void saveRingtone(final CharSequence title) {
+    // Save the selection as title. If saveWAVCopy is set, a .wav copy of the selection is saved
+    // too, encoded in the same pass as the .m4a file (see exportSelection()).
+    private void saveRingtone(final CharSequence title, final boolean saveWAVCopy) {
         double startTime = waveformView.pixelsToSeconds(startPos);
         double endTime = waveformView.pixelsToSeconds(endPos);
         final int startFrame = waveformView.secondsToFrames(startTime);
@@ -1260,8 +1394,34 @@ public class RingdroidEditActivity extends Activity
         // Save the sound file in a background thread
         saveSoundFileThread = new Thread() {
             public void run() {
-                // Try AAC first.
-                String outPath = makeRingtoneFilename(title, ".m4a");
+                // The file may still be decoding if the editor was opened early.
+                closeThread(loadSoundFileThread);
+
+                // MP3 files are cut without re-encoding them.
+                String outPath = null;
+                if (soundFile.getFiletype().equalsIgnoreCase("mp3")) {
+                    outPath = copyMP3File(title, startFrame, endFrame - startFrame);
+                }
+                if (outPath != null) {
+                    if (saveWAVCopy) {
+                        String wavPath = makeRingtoneFilename(title, ".wav");
+                        if (wavPath != null) {
+                            exportSelection(null, new File(wavPath), startFrame,
+                                    endFrame - startFrame);
+                        }
+                    }
+                    progressDialog.dismiss();
+                    final String finalOutPath = outPath;
+                    handler.post(new Runnable() {
+                        public void run() {
+                            afterSavingRingtone(title, finalOutPath, duration);
+                        }
+                    });
+                    return;
+                }
+
+                // Then try AAC.
+                outPath = makeRingtoneFilename(title, ".m4a");
                 if (outPath == null) {
                     Runnable runnable = new Runnable() {
                         public void run() {
@@ -1272,10 +1432,33 @@ public class RingdroidEditActivity extends Activity
                     return;
                 }
                 File outFile = new File(outPath);
+                File wavFile = null;  // the .wav copy, if asked for.
+                if (saveWAVCopy) {
+                    String wavPath = makeRingtoneFilename(title, ".wav");
+                    if (wavPath != null) {
+                        wavFile = new File(wavPath);
+                    }
+                }
                 boolean fallbackToWAV = false;
                 try {
-                    // Write the new file
-                    soundFile.WriteFile(outFile,  startFrame, endFrame - startFrame);
+                    // Write the new file. AAC sources are cut without re-encoding them, and the
+                    // selection has usually been encoded in the background already.
+                    boolean written =
+                            soundFile.CopyAACFile(outFile, startFrame, endFrame - startFrame) ||
+                            (preEncoder != null && preEncoder.moveTo(
+                                    startFrame, endFrame - startFrame, outFile));
+                    if (wavFile != null) {
+                        Exception[] errors = exportSelection(written ? null : outFile, wavFile,
+                                startFrame, endFrame - startFrame);
+                        if (errors[1] != null) {
+                            wavFile = null;
+                        }
+                        if (errors[0] != null) {
+                            throw errors[0];
+                        }
+                    } else if (!written) {
+                        soundFile.WriteFile(outFile,  startFrame, endFrame - startFrame);
+                    }
                 } catch (Exception e) {
                     // log the error and try to create a .wav file instead
                     if (outFile.exists()) {
@@ -1287,6 +1470,12 @@ public class RingdroidEditActivity extends Activity
                     fallbackToWAV = true;
                 }
 
+                if (fallbackToWAV && wavFile != null) {
+                    // The .wav copy has been written anyway: save it instead.
+                    outPath = wavFile.getPath();
+                    fallbackToWAV = false;
+                }
+
                 // Try to create a .wav file if creating a .m4a file failed.
                 if (fallbackToWAV) {
                     outPath = makeRingtoneFilename(title, ".wav");
@@ -1337,19 +1526,10 @@ public class RingdroidEditActivity extends Activity
                     }
                 }
 
-                // Try to load the new file to make sure it worked
+                // Check the structure of the new file to make sure it worked (much faster than
+                // decoding it again).
                 try {
-                    final SoundFile.ProgressListener listener =
-                        new SoundFile.ProgressListener() {
-                            public boolean reportProgress(double frac) {
-                                // Do nothing - we're not going to try to
-                                // estimate when reloading a saved sound
-                                // since it's usually fast, but hard to
-                                // estimate anyway.
-                                return true;  // Keep going
-                            }
-                        };
-                    SoundFile.create(outPath, listener);
+                    SoundFileValidator.validate(new File(outPath));
                 } catch (final Exception e) {
                     progressDialog.dismiss();
                     infoContent = e.toString();
@@ -1384,6 +1564,105 @@ public class RingdroidEditActivity extends Activity
         saveSoundFileThread.start();
     }
 
+    // Queue the export of the selection as title (and of a .wav copy if saveWAVCopy is set).
+    private void exportInBackground(CharSequence title, boolean saveWAVCopy) {
+        float startTime = (float)waveformView.pixelsToSeconds(startPos);
+        float endTime = (float)waveformView.pixelsToSeconds(endPos);
+        // As saveRingtone(), MP3 files are cut without re-encoding them.
+        String mainExtension = soundFile.getFiletype().equalsIgnoreCase("mp3") ? ".mp3" : ".m4a";
+        String[] extensions = saveWAVCopy ?
+                new String[] {mainExtension, ".wav"} : new String[] {mainExtension};
+        for (String extension : extensions) {
+            // The editor stays open: report errors without closing it (see showFinalAlert()).
+            String outPath = makeRingtoneFilename(title, extension);
+            if (outPath == null) {
+                Toast.makeText(this, R.string.no_unique_filename, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            File outFile = new File(outPath);
+            try {
+                // Reserve the name, which makeRingtoneFilename() would give to the next export
+                // otherwise.
+                outFile.createNewFile();
+            } catch (IOException e) {
+                Log.e("RingdroidEditActivity", "exportInBackground() failed to create " +
+                        outPath + "\n" + getStackTrace(e));
+                Toast.makeText(this, R.string.write_error, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (soundFileDecoded) {
+                // Export from the samples of the editor, instead of decoding the file again.
+                BackgroundExports.get(this).submit(soundFile, startTime, endTime, outFile);
+            } else {
+                BackgroundExports.get(this).submit(file, startTime, endTime, outFile);
+            }
+        }
+        Toast.makeText(this, R.string.background_export_queued, Toast.LENGTH_SHORT).show();
+    }
+
+    // Write the selection to aacFile and wavFile (either may be null), reading its samples once
+    // for both files. Returns {error writing aacFile, error writing wavFile}, null for a file
+    // written (or not asked for); a file which could not be written is deleted. The .wav file
+    // is checked and added to the media library here, as it is not the file being saved.
+    private Exception[] exportSelection(File aacFile, File wavFile, int startFrame,
+            int numFrames) {
+        Exception[] errors = new Exception[2];
+        FanOutExporter exporter = new FanOutExporter(soundFile);
+        int aacSink = (aacFile != null) ? exporter.addAACFile(aacFile) : -1;
+        int wavSink = (wavFile != null) ? exporter.addWAVFile(wavFile) : -1;
+        try {
+            exporter.export(startFrame, numFrames);
+        } catch (InterruptedIOException e) {
+            errors[0] = errors[1] = e;  // The sinks have been aborted.
+            return errors;
+        }
+        if (aacSink >= 0) {
+            errors[0] = exporter.getError(aacSink);
+        }
+        if (wavSink >= 0) {
+            errors[1] = exporter.getError(wavSink);
+            if (errors[1] == null) {
+                try {
+                    SoundFileValidator.validate(wavFile);
+                    MediaScannerConnection.scanFile(
+                            this, new String[] {wavFile.getPath()}, null, null);
+                } catch (IOException e) {
+                    Log.e("RingdroidEditActivity", "exportSelection() invalid " + wavFile +
+                            "\n" + getStackTrace(e));
+                    wavFile.delete();
+                    errors[1] = e;
+                }
+            }
+        }
+        return errors;
+    }
+
+    // Copy the frames of the selection to a new .mp3 file. Returns the path of the file, or null
+    // if it could not be created or loaded (in which case the selection must be encoded).
+    private String copyMP3File(CharSequence title, int startFrame, int numFrames) {
+        String outPath = makeRingtoneFilename(title, ".mp3");
+        if (outPath == null) {
+            return null;
+        }
+        File outFile = new File(outPath);
+        try {
+            if (soundFile.CopyMP3File(outFile, startFrame, numFrames)) {
+                // Check the new file to make sure it worked.
+                SoundFileValidator.validate(outFile);
+                return outPath;
+            }
+        } catch (Exception e) {
+            StringWriter writer = new StringWriter();
+            e.printStackTrace(new PrintWriter(writer));
+            Log.e("RingdroidEditActivity", "copyMP3File() failed to create " + outPath + "\n" +
+                    writer.toString());
+        }
+        if (outFile.exists()) {
+            outFile.delete();
+        }
+        return null;
+    }
+
     private void afterSavingRingtone(CharSequence title,
                                      String outPath,
                                      int duration) {
@@ -1406,6 +1685,8 @@ public class RingdroidEditActivity extends Activity
             mimeType = "audio/mp4a-latm";
         } else if (outPath.endsWith(".wav")) {
             mimeType = "audio/wav";
+        } else if (outPath.endsWith(".mp3")) {
+            mimeType = "audio/mpeg";
         } else {
             // This should never happen.
             mimeType = "audio/mpeg";
@@ -1531,7 +1812,9 @@ public class RingdroidEditActivity extends Activity
         }
     }
 
-    private void onSave() {
+    // Ask for the name of the new file, and save the selection. If background is set, the
+    // selection is exported by BackgroundExports, and the editor stays open.
+    private void onSave(final boolean background) {
         if (isPlaying) {
             handlePause();
         }
@@ -1540,7 +1823,11 @@ public class RingdroidEditActivity extends Activity
                 public void handleMessage(Message response) {
                     CharSequence newTitle = (CharSequence)response.obj;
                     newFileKind = response.arg1;
-                    saveRingtone(newTitle);
+                    if (background) {
+                        exportInBackground(newTitle, response.arg2 != 0);
+                    } else {
+                        saveRingtone(newTitle, response.arg2 != 0);
+                    }
                 }
             };
         Message message = Message.obtain(handler);
@@ -70,6 +70,7 @@ public class RingdroidSelectActivity
 {
     private SearchView searchViewFilter;
     private SimpleCursorAdapter cursorAdapter;
+    private WaveformThumbnails waveformThumbnails;
     private boolean wasGetContentIntent;
     private boolean showAll;
     private Cursor internalCursor;
@@ -128,6 +129,13 @@ public class RingdroidSelectActivity
         // Inflate our UI from its XML layout description.
         setContentView(R.layout.media_select);
 
+        // Files opened in the editor before have their waveform peaks saved in the cache
+        // directory, from which small waveforms are drawn without decoding anything.
+        SoundFile.setCacheDirectory(getCacheDir());
+        float density = getResources().getDisplayMetrics().density;
+        waveformThumbnails = new WaveformThumbnails((int)(64 * density), (int)(32 * density),
+                getResources().getColor(R.color.waveform_selected));
+
         try {
             cursorAdapter = new SimpleCursorAdapter(
                     this,
@@ -142,7 +150,8 @@ public class RingdroidSelectActivity
                         MediaStore.Audio.Media._ID,
                         MediaStore.Audio.Media._ID,
                         MediaStore.Audio.Media.DURATION,
-                        MediaStore.MediaColumns.DATE_MODIFIED,},
+                        MediaStore.MediaColumns.DATE_MODIFIED,
+                        MediaStore.Audio.Media.DATA,},
                         // To widget ids in the row layout...
                     new int[] {
                         R.id.row_artist,
@@ -151,7 +160,8 @@ public class RingdroidSelectActivity
                         R.id.row_icon,
                         R.id.row_options_button,
                         R.id.row_size,
-                        R.id.row_date_modified},
+                        R.id.row_date_modified,
+                        R.id.row_waveform},
                     0);
 
             setListAdapter(cursorAdapter);
@@ -192,6 +202,9 @@ public class RingdroidSelectActivity
                 } else if (view.getId() == R.id.row_icon) {
                     setSoundIconFromCursor((ImageView) view, cursor);
                     return true;
+                } else if (view.getId() == R.id.row_waveform) {
+                    waveformThumbnails.load((ImageView) view, cursor.getString(columnIndex));
+                    return true;
                 }
 
                 return false;
@@ -16,13 +16,14 @@
 
 package com.ringdroid;
 
-import java.nio.ShortBuffer;
-
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.ringdroid.soundfile.SampleCursor;
 import com.ringdroid.soundfile.SoundFile;
 
 class SamplePlayer {
@@ -30,22 +31,24 @@ class SamplePlayer {
         public void onCompletion();
     };
 
-    private ShortBuffer shortBuffSamples;
+    private SoundFile soundFile;  // May still be decoding when the player is created.
+    private SampleCursor samples;
     private int originalSampleRate;
     private int numChannels;
-    private int numberOfSamples;  // Number of samples per channel.
+    private long numberOfSamples;  // Number of samples per channel.
     private AudioTrack originalAudioTrack;
     private short[] buffer;
-    private int playbackStart;  // Start offset, in samples.
+    private long playbackStart;  // Start offset, in samples.
     private Thread playThread;
     private boolean keepPlaying;
     private OnCompletionListener completionListener;
 
-    public SamplePlayer(ShortBuffer samples, int sampleRate, int channels, int numSamples) {
-        shortBuffSamples = samples;
+    public SamplePlayer(SampleCursor samples, int sampleRate, int channels, long numSamples) {
+        this.samples = samples;
         originalSampleRate = sampleRate;
         numChannels = channels;
-        numberOfSamples = numSamples;
+        // samples is null if nothing has been decoded yet.
+        numberOfSamples = (samples != null) ? numSamples : 0;
         playbackStart = 0;
 
         int bufferSize = AudioTrack.getMinBufferSize(
@@ -65,7 +68,8 @@ class SamplePlayer {
                 buffer.length * 2,
                 AudioTrack.MODE_STREAM);
         // Check when player played all the given data and notify user if completionListener is set.
-        originalAudioTrack.setNotificationMarkerPosition(numberOfSamples - 1);  // Set the marker to the end.
+        // The notifications are handled by the main thread, whatever thread creates the player.
+        setEndMarker();  // Set the marker to the end.
         originalAudioTrack.setPlaybackPositionUpdateListener(
                 new AudioTrack.OnPlaybackPositionUpdateListener() {
             @Override
@@ -78,14 +82,30 @@ class SamplePlayer {
                     completionListener.onCompletion();
                 }
             }
-        });
+        }, new Handler(Looper.getMainLooper()));
         playThread = null;
         keepPlaying = true;
         completionListener = null;
     }
 
     public SamplePlayer(SoundFile sf) {
-        this(sf.getSamples(), sf.getSampleRate(), sf.getChannels(), sf.getNumSamples());
+        this(sf.getSampleCursor(), sf.getSampleRate(), sf.getChannels(), sf.getNumSamples());
+        soundFile = sf;
+    }
+
+    // Pick up the samples decoded since the last call, if the sound file was still being decoded.
+    // Returns true if more samples are available.
+    private boolean refreshSamples() {
+        if (soundFile == null || soundFile.getNumSamples() == numberOfSamples) {
+            return false;
+        }
+        SampleCursor cursor = soundFile.getSampleCursor();
+        if (cursor == null) {
+            return false;  // Still nothing decoded.
+        }
+        samples = cursor;
+        numberOfSamples = cursor.getNumSamples();
+        return true;
     }
 
     public void setOnCompletionListener(OnCompletionListener listener) {
@@ -104,25 +124,33 @@ class SamplePlayer {
         if (isPlaying()) {
             return;
         }
+        if (refreshSamples()) {
+            setEndMarker();
+        }
+        if (samples == null) {
+            // Nothing to play yet: done right away.
+            if (completionListener != null) {
+                completionListener.onCompletion();
+            }
+            return;
+        }
         keepPlaying = true;
         originalAudioTrack.flush();
         originalAudioTrack.play();
         // Setting thread feeding the audio samples to the audio hardware.
         // (Assumes numChannels = 1 or 2).
+        // Each thread reads the samples through its own cursor.
+        final SampleCursor cursor = samples.duplicate();
+        cursor.seek(playbackStart);
         playThread = new Thread () {
             public void run() {
-                int position = playbackStart * numChannels;
-                shortBuffSamples.position(position);
-                int limit = numberOfSamples * numChannels;
-                while (shortBuffSamples.position() < limit && keepPlaying) {
-                    int numSamplesLeft = limit - shortBuffSamples.position();
-                    if(numSamplesLeft >= buffer.length) {
-                        shortBuffSamples.get(buffer);
-                    } else {
-                        for(int i=numSamplesLeft; i<buffer.length; i++) {
-                            buffer[i] = 0;
-                        }
-                        shortBuffSamples.get(buffer, 0, numSamplesLeft);
+                while (keepPlaying) {
+                    int numRead = cursor.read(buffer, 0, buffer.length);
+                    if (numRead == 0) {
+                        break;
+                    }
+                    for(int i=numRead; i<buffer.length; i++) {
+                        buffer[i] = 0;
                     }
                     // TODO(nfaralli): use the write method that takes a ByteBuffer as argument.
                     originalAudioTrack.write(buffer, 0, buffer.length);
@@ -164,18 +192,28 @@ class SamplePlayer {
     public void seekTo(int msec) {
         boolean wasPlaying = isPlaying();
         stop();
-        playbackStart = (int)(msec * (originalSampleRate / 1000.0));
+        refreshSamples();
+        playbackStart = (long)(msec * (originalSampleRate / 1000.0));
         if (playbackStart > numberOfSamples) {
             playbackStart = numberOfSamples;  // Nothing to play...
         }
-        originalAudioTrack.setNotificationMarkerPosition(numberOfSamples - 1 - playbackStart);
+        setEndMarker();
         if (wasPlaying) {
             start();
         }
     }
 
     public int getCurrentPosition() {
-        return (int)((playbackStart + originalAudioTrack.getPlaybackHeadPosition()) *
-                (1000.0 / originalSampleRate));
+        // The head position is an unsigned 32 bits value.
+        long headPosition = originalAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        return (int)((playbackStart + headPosition) * (1000.0 / originalSampleRate));
+    }
+
+    // Set the notification marker on the last sample, relative to playbackStart. The marker is a
+    // 32 bits frame position, so it is clamped for very long files (over 13 hours at 44.1kHz).
+    private void setEndMarker() {
+        originalAudioTrack.setNotificationMarkerPosition(
+                (int)Math.max(0,
+                        Math.min(Integer.MAX_VALUE, numberOfSamples - 1 - playbackStart)));
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.AsyncTask;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.ringdroid.soundfile.SoundFile;
+import com.ringdroid.soundfile.WaveformEnvelope;
+import com.ringdroid.soundfile.WaveformPeaks;
+
+// Small waveform images of the files listed by RingdroidSelectActivity, drawn from the peaks saved
+// the last time each file was opened in the editor (see SoundFile.getPeaks()), so that nothing is
+// decoded. Files which have never been opened get no image.
+// The peaks are read and drawn in the background, and the images are kept in a memory cache.
+class WaveformThumbnails {
+    private static final int CACHE_SIZE_BYTES = 2 << 20;
+
+    private final int width;
+    private final int height;
+    private final Paint paint;
+    private final LruCache<String, Bitmap> cache;
+    private final Set<String> loading = new HashSet<String>();  // files being read.
+    private final Set<String> missing = new HashSet<String>();  // files without peaks.
+
+    // The images are width x height pixels, drawn in color.
+    WaveformThumbnails(int width, int height, int color) {
+        this.width = width;
+        this.height = height;
+        paint = new Paint();
+        paint.setAntiAlias(false);
+        paint.setColor(color);
+        cache = new LruCache<String, Bitmap>(CACHE_SIZE_BYTES) {
+            protected int sizeOf(String path, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    // Show the image of the file at path in view, or no image until it has been read (or if there
+    // is none). Must be called from the UI thread.
+    void load(final ImageView view, final String path) {
+        view.setTag(path);
+        Bitmap bitmap = cache.get(path);
+        view.setImageBitmap(bitmap);
+        if (bitmap != null || missing.contains(path) || !loading.add(path)) {
+            return;
+        }
+        new AsyncTask<Void, Void, Bitmap>() {
+            protected Bitmap doInBackground(Void... params) {
+                WaveformPeaks peaks = SoundFile.getPeaks(path);
+                return (peaks != null) ? draw(peaks.getEnvelope()) : null;
+            }
+
+            protected void onPostExecute(Bitmap bitmap) {
+                loading.remove(path);
+                if (bitmap == null) {
+                    missing.add(path);
+                    return;
+                }
+                cache.put(path, bitmap);
+                // The view may have been reused for another file meanwhile.
+                if (path.equals(view.getTag())) {
+                    view.setImageBitmap(bitmap);
+                }
+            }
+        }.execute();
+    }
+
+    // Draw the min to max range of the samples (all channels together) in each column.
+    private Bitmap draw(WaveformEnvelope envelope) {
+        int numFrames = envelope.getNumBlocks();
+        int channels = envelope.getChannels();
+        if (numFrames == 0) {
+            return null;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        int peak = envelope.getPeak();
+        int ctr = height / 2;
+        for (int x = 0; x < width; x++) {
+            int first = (int)((long)x * numFrames / width);
+            int last = Math.max(first + 1, (int)((long)(x + 1) * numFrames / width));
+            int min = 0;
+            int max = 0;
+            for (int i = first * channels; i < last * channels; i++) {
+                min = Math.min(min, envelope.getMins()[i]);
+                max = Math.max(max, envelope.getMaxs()[i]);
+            }
+            canvas.drawLine(x, ctr - max * ctr / peak, x, ctr + 1 - min * ctr / peak, paint);
+        }
+        return bitmap;
+    }
+}
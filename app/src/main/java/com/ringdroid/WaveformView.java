@@ -29,11 +29,15 @@ import android.view.ScaleGestureDetector;
 import android.view.View;
 
 import com.ringdroid.soundfile.SoundFile;
+import com.ringdroid.soundfile.WaveformEnvelope;
+import com.ringdroid.soundfile.WaveformPeaks;
 
 /**
  * WaveformView is an Android view that displays a visual representation
- * of an audio waveform.  It retrieves the frame gains from a CheapSoundFile
- * object and recomputes the shape contour at several zoom levels.
+ * of an audio waveform.  It retrieves the envelope (per channel min, max
+ * and RMS of each frame) from a SoundFile object and recomputes it at
+ * several zoom levels.  Each channel is drawn in a lane of its own: the
+ * min to max range of the samples, with their RMS inside it.
  *
  * This class doesn't handle selection or any of the touch interactions
  * directly, so it exposes a listener interface.  The class that embeds
@@ -58,16 +62,27 @@ public class WaveformView extends View {
     private Paint gridPaint;
     private Paint selectedLinePaint;
     private Paint unselectedLinePaint;
+    private Paint selectedRmsPaint;
+    private Paint unselectedRmsPaint;
     private Paint unselectedBkgndLinePaint;
     private Paint borderLinePaint;
     private Paint playbackLinePaint;
     private Paint timecodePaint;
 
     private SoundFile soundFile;
+    private WaveformPeaks peaks;
+    private int channels;
     private int[] lenByZoomLevel;
-    private double[][] valuesByZoomLevel;
+    // Min, max and RMS values of each pixel and channel (indexed by pixel * channels + channel) at
+    // each zoom level, scaled so that 127 is the peak of the file.
+    private byte[][] minsByZoomLevel;
+    private byte[][] maxsByZoomLevel;
+    private byte[][] rmsByZoomLevel;
     private double[] zoomFactorByZoomLevel;
-    private int[] heightsAtThisZoomLevel;
+    // Same values in pixels from the center of the lane of each channel, at this zoom level.
+    private int[] minsAtThisZoomLevel;
+    private int[] maxsAtThisZoomLevel;
+    private int[] rmsAtThisZoomLevel;
     private int zoomLevel;
     private int numZoomLevels;
     private int sampleRate;
@@ -99,6 +114,12 @@ public class WaveformView extends View {
         unselectedLinePaint = new Paint();
         unselectedLinePaint.setAntiAlias(false);
         unselectedLinePaint.setColor(res.getColor(R.color.waveform_unselected));
+        selectedRmsPaint = new Paint();
+        selectedRmsPaint.setAntiAlias(false);
+        selectedRmsPaint.setColor(res.getColor(R.color.waveform_selected_rms));
+        unselectedRmsPaint = new Paint();
+        unselectedRmsPaint.setAntiAlias(false);
+        unselectedRmsPaint.setColor(res.getColor(R.color.waveform_unselected_rms));
         unselectedBkgndLinePaint = new Paint();
         unselectedBkgndLinePaint.setAntiAlias(false);
         unselectedBkgndLinePaint.setColor(res.getColor(R.color.waveform_unselected_bkgnd_overlay));
@@ -154,9 +175,12 @@ public class WaveformView extends View {
         );
 
         soundFile = null;
+        peaks = null;
         lenByZoomLevel = null;
-        valuesByZoomLevel = null;
-        heightsAtThisZoomLevel = null;
+        minsByZoomLevel = null;
+        maxsByZoomLevel = null;
+        rmsByZoomLevel = null;
+        maxsAtThisZoomLevel = null;
         offset = 0;
         playbackPos = -1;
         selectionStart = 0;
@@ -190,12 +214,65 @@ public class WaveformView extends View {
         return soundFile != null;
     }
 
+    /**
+     * Display the waveform from the peaks saved the last time the file was
+     * decoded, instead of computing it from the sound file.  The whole
+     * waveform is then available while the sound file is still decoding.
+     * Must be called before setSoundFile.
+     *
+     * The sound file itself is still decoded (unless its samples are in
+     * the PCM cache), since playing and saving need the samples.  The zoom
+     * levels are not saved with the peaks: they are rebuilt from them in
+     * one linear pass, which is negligible next to decoding.
+     */
+    public void setPeaks(WaveformPeaks peaks) {
+        this.peaks = peaks;
+    }
+
     public void setSoundFile(SoundFile soundFile) {
         this.soundFile = soundFile;
-        sampleRate = this.soundFile.getSampleRate();
-        samplesPerFrame = this.soundFile.getSamplesPerFrame();
-        computeDoublesForAllZoomLevels();
-        heightsAtThisZoomLevel = null;
+        int numFrames;
+        if (peaks != null &&
+            peaks.getSampleRate() == soundFile.getSampleRate() &&
+            peaks.getChannels() == soundFile.getChannels() &&
+            peaks.getSamplesPerFrame() == soundFile.getSamplesPerFrame()) {
+            sampleRate = peaks.getSampleRate();
+            samplesPerFrame = peaks.getSamplesPerFrame();
+            numFrames = peaks.getNumFrames();
+            computeZoomLevels(peaks.getEnvelope());
+        } else {
+            peaks = null;
+            sampleRate = this.soundFile.getSampleRate();
+            samplesPerFrame = this.soundFile.getSamplesPerFrame();
+            computeZoomLevels(soundFile.getEnvelope());
+            // Use the expected length of the file, which may still be decoding.
+            numFrames = this.soundFile.getExpectedNumFrames();
+        }
+
+        if (numFrames > 5000) {
+            zoomLevel = 3;
+        } else if (numFrames > 1000) {
+            zoomLevel = 2;
+        } else if (numFrames > 300) {
+            zoomLevel = 1;
+        } else {
+            zoomLevel = 0;
+        }
+        maxsAtThisZoomLevel = null;
+    }
+
+    /**
+     * Called while the sound file is still being decoded, to extend the
+     * waveform with the frames decoded since the last call.  The zoom level,
+     * selection and offset are left untouched.
+     */
+    public void updateSoundFile() {
+        if (peaks != null) {
+            return;  // The waveform is already complete.
+        }
+        computeZoomLevels(soundFile.getEnvelope());
+        maxsAtThisZoomLevel = null;
+        invalidate();
     }
 
     public boolean isInitialized() {
@@ -224,7 +301,7 @@ public class WaveformView extends View {
             zoomLevel--;
             selectionStart *= 2;
             selectionEnd *= 2;
-            heightsAtThisZoomLevel = null;
+            maxsAtThisZoomLevel = null;
             int offsetCenter = offset + getMeasuredWidth() / 2;
             offsetCenter *= 2;
             offset = offsetCenter - getMeasuredWidth() / 2;
@@ -248,7 +325,7 @@ public class WaveformView extends View {
             offset = offsetCenter - getMeasuredWidth() / 2;
             if (offset < 0)
                 offset = 0;
-            heightsAtThisZoomLevel = null;
+            maxsAtThisZoomLevel = null;
             invalidate();
         }
     }
@@ -310,7 +387,7 @@ public class WaveformView extends View {
     }
 
     public void recomputeHeights(float density) {
-        heightsAtThisZoomLevel = null;
+        maxsAtThisZoomLevel = null;
         this.density = density;
         timecodePaint.setTextSize((int)(12 * density));
 
@@ -329,15 +406,15 @@ public class WaveformView extends View {
         if (soundFile == null)
             return;
 
-        if (heightsAtThisZoomLevel == null)
+        if (maxsAtThisZoomLevel == null)
             computeIntsForThisZoomLevel();
 
         // Draw waveform
         int measuredWidth = getMeasuredWidth();
         int measuredHeight = getMeasuredHeight();
         int start = offset;
-        int width = heightsAtThisZoomLevel.length - start;
-        int ctr = measuredHeight / 2;
+        int width = lenByZoomLevel[zoomLevel] - start;
+        int laneHeight = measuredHeight / channels;
 
         if (width > measuredWidth)
             width = measuredWidth;
@@ -363,19 +440,31 @@ public class WaveformView extends View {
         // Draw waveform
         for (i = 0; i < width; i++) {
             Paint paint;
+            Paint rmsPaint;
             if (i + start >= selectionStart &&
                 i + start < selectionEnd) {
                 paint = selectedLinePaint;
+                rmsPaint = selectedRmsPaint;
             } else {
                 drawWaveformLine(canvas, i, 0, measuredHeight,
                         unselectedBkgndLinePaint);
                 paint = unselectedLinePaint;
+                rmsPaint = unselectedRmsPaint;
+            }
+            for (int channel = 0; channel < channels; channel++) {
+                int index = (start + i) * channels + channel;
+                int ctr = laneHeight * channel + laneHeight / 2;
+                drawWaveformLine(
+                    canvas, i,
+                    ctr - maxsAtThisZoomLevel[index],
+                    ctr + 1 - minsAtThisZoomLevel[index],
+                    paint);
+                drawWaveformLine(
+                    canvas, i,
+                    ctr - rmsAtThisZoomLevel[index],
+                    ctr + 1 + rmsAtThisZoomLevel[index],
+                    rmsPaint);
             }
-            drawWaveformLine(
-                canvas, i,
-                ctr - heightsAtThisZoomLevel[start + i],
-                ctr + 1 + heightsAtThisZoomLevel[start + i],
-                paint);
 
             if (i + start == playbackPos) {
                 canvas.drawLine(i, 0, i, measuredHeight, playbackLinePaint);
@@ -443,148 +532,102 @@ public class WaveformView extends View {
     }
 
     /**
-     * Called once when a new sound file is added
+     * Called once when a new sound file is added, and each time more frames
+     * have been decoded
      */
-    private void computeDoublesForAllZoomLevels() {
-        int numFrames = soundFile.getNumFrames();
-        int[] frameGains = soundFile.getFrameGains();
-        double[] smoothedGains = new double[numFrames];
-        if (numFrames == 1) {
-            smoothedGains[0] = frameGains[0];
-        } else if (numFrames == 2) {
-            smoothedGains[0] = frameGains[0];
-            smoothedGains[1] = frameGains[1];
-        } else if (numFrames > 2) {
-            smoothedGains[0] = (double)(
-                (frameGains[0] / 2.0) +
-                (frameGains[1] / 2.0));
-            for (int i = 1; i < numFrames - 1; i++) {
-                smoothedGains[i] = (double)(
-                    (frameGains[i - 1] / 3.0) +
-                    (frameGains[i    ] / 3.0) +
-                    (frameGains[i + 1] / 3.0));
-            }
-            smoothedGains[numFrames - 1] = (double)(
-                (frameGains[numFrames - 2] / 2.0) +
-                (frameGains[numFrames - 1] / 2.0));
-        }
-
-        // Make sure the range is no more than 0 - 255
-        double maxGain = 1.0;
-        for (int i = 0; i < numFrames; i++) {
-            if (smoothedGains[i] > maxGain) {
-                maxGain = smoothedGains[i];
-            }
-        }
-        double scaleFactor = 1.0;
-        if (maxGain > 255.0) {
-            scaleFactor = 255 / maxGain;
-        }
-
-        // Build histogram of 256 bins and figure out the new scaled max
-        maxGain = 0;
-        int gainHist[] = new int[256];
-        for (int i = 0; i < numFrames; i++) {
-            int smoothedGain = (int)(smoothedGains[i] * scaleFactor);
-            if (smoothedGain < 0)
-                smoothedGain = 0;
-            if (smoothedGain > 255)
-                smoothedGain = 255;
-
-            if (smoothedGain > maxGain)
-                maxGain = smoothedGain;
-
-            gainHist[smoothedGain]++;
-        }
-
-        // Re-calibrate the min to be 5%
-        double minGain = 0;
-        int sum = 0;
-        while (minGain < 255 && sum < numFrames / 20) {
-            sum += gainHist[(int)minGain];
-            minGain++;
-        }
-
-        // Re-calibrate the max to be 99%
-        sum = 0;
-        while (maxGain > 2 && sum < numFrames / 100) {
-            sum += gainHist[(int)maxGain];
-            maxGain--;
-        }
-
-        // Compute the heights
-        double[] heights = new double[numFrames];
-        double range = maxGain - minGain;
-        for (int i = 0; i < numFrames; i++) {
-            double value = (smoothedGains[i] * scaleFactor - minGain) / range;
-            if (value < 0.0)
-                value = 0.0;
-            if (value > 1.0)
-                value = 1.0;
-            heights[i] = value * value;
-        }
+    private void computeZoomLevels(WaveformEnvelope envelope) {
+        channels = envelope.getChannels();
+        int numFrames = envelope.getNumBlocks();
+        short[] mins = envelope.getMins();
+        short[] maxs = envelope.getMaxs();
+        short[] rms = envelope.getRms();
+        // Scale the values so that the loudest frame fills the lane of its channel.
+        int peak = envelope.getPeak();
 
         numZoomLevels = 5;
         lenByZoomLevel = new int[5];
         zoomFactorByZoomLevel = new double[5];
-        valuesByZoomLevel = new double[5][];
-
-        // Level 0 is doubled, with interpolated values
-        lenByZoomLevel[0] = numFrames * 2;
-        zoomFactorByZoomLevel[0] = 2.0;
-        valuesByZoomLevel[0] = new double[lenByZoomLevel[0]];
-        if (numFrames > 0) {
-            valuesByZoomLevel[0][0] = 0.5 * heights[0];
-            valuesByZoomLevel[0][1] = heights[0];
-        }
-        for (int i = 1; i < numFrames; i++) {
-            valuesByZoomLevel[0][2 * i] = 0.5 * (heights[i - 1] + heights[i]);
-            valuesByZoomLevel[0][2 * i + 1] = heights[i];
-        }
+        minsByZoomLevel = new byte[5][];
+        maxsByZoomLevel = new byte[5][];
+        rmsByZoomLevel = new byte[5][];
 
         // Level 1 is normal
         lenByZoomLevel[1] = numFrames;
-        valuesByZoomLevel[1] = new double[lenByZoomLevel[1]];
         zoomFactorByZoomLevel[1] = 1.0;
-        for (int i = 0; i < lenByZoomLevel[1]; i++) {
-            valuesByZoomLevel[1][i] = heights[i];
+        allocateZoomLevel(1);
+        for (int i = 0; i < numFrames * channels; i++) {
+            minsByZoomLevel[1][i] = (byte)(mins[i] * 127 / peak);
+            maxsByZoomLevel[1][i] = (byte)(maxs[i] * 127 / peak);
+            rmsByZoomLevel[1][i] = (byte)(rms[i] * 127 / peak);
+        }
+
+        // Level 0 is doubled, with interpolated values
+        lenByZoomLevel[0] = numFrames * 2;
+        zoomFactorByZoomLevel[0] = 2.0;
+        allocateZoomLevel(0);
+        for (int i = 0; i < numFrames * channels; i++) {
+            int frame = i / channels;
+            int channel = i % channels;
+            int previous = (frame > 0) ? i - channels : -1;
+            int even = 2 * frame * channels + channel;
+            int odd = even + channels;
+            minsByZoomLevel[0][even] = interpolate(minsByZoomLevel[1], previous, i);
+            maxsByZoomLevel[0][even] = interpolate(maxsByZoomLevel[1], previous, i);
+            rmsByZoomLevel[0][even] = interpolate(rmsByZoomLevel[1], previous, i);
+            minsByZoomLevel[0][odd] = minsByZoomLevel[1][i];
+            maxsByZoomLevel[0][odd] = maxsByZoomLevel[1][i];
+            rmsByZoomLevel[0][odd] = rmsByZoomLevel[1][i];
         }
 
-        // 3 more levels are each halved
+        // 3 more levels are each halved: each pixel spans the min to
+        // max range of the 2 pixels it replaces, and their mean energy.
         for (int j = 2; j < 5; j++) {
             lenByZoomLevel[j] = lenByZoomLevel[j - 1] / 2;
-            valuesByZoomLevel[j] = new double[lenByZoomLevel[j]];
             zoomFactorByZoomLevel[j] = zoomFactorByZoomLevel[j - 1] / 2.0;
-            for (int i = 0; i < lenByZoomLevel[j]; i++) {
-                valuesByZoomLevel[j][i] =
-                    0.5 * (valuesByZoomLevel[j - 1][2 * i] +
-                           valuesByZoomLevel[j - 1][2 * i + 1]);
+            allocateZoomLevel(j);
+            for (int i = 0; i < lenByZoomLevel[j] * channels; i++) {
+                int a = 2 * (i - i % channels) + i % channels;
+                int b = a + channels;
+                minsByZoomLevel[j][i] = (byte)Math.min(
+                    minsByZoomLevel[j - 1][a], minsByZoomLevel[j - 1][b]);
+                maxsByZoomLevel[j][i] = (byte)Math.max(
+                    maxsByZoomLevel[j - 1][a], maxsByZoomLevel[j - 1][b]);
+                int rmsA = rmsByZoomLevel[j - 1][a];
+                int rmsB = rmsByZoomLevel[j - 1][b];
+                rmsByZoomLevel[j][i] = (byte)Math.sqrt((rmsA * rmsA + rmsB * rmsB) / 2);
             }
         }
 
-        if (numFrames > 5000) {
-            zoomLevel = 3;
-        } else if (numFrames > 1000) {
-            zoomLevel = 2;
-        } else if (numFrames > 300) {
-            zoomLevel = 1;
-        } else {
-            zoomLevel = 0;
-        }
-
         initialized = true;
     }
 
+    private void allocateZoomLevel(int zoomLevel) {
+        minsByZoomLevel[zoomLevel] = new byte[lenByZoomLevel[zoomLevel] * channels];
+        maxsByZoomLevel[zoomLevel] = new byte[lenByZoomLevel[zoomLevel] * channels];
+        rmsByZoomLevel[zoomLevel] = new byte[lenByZoomLevel[zoomLevel] * channels];
+    }
+
+    // Value halfway between values[previous] and values[index], or half of
+    // values[index] if there is no previous value.
+    private static byte interpolate(byte[] values, int previous, int index) {
+        int value = (previous >= 0) ? values[previous] : 0;
+        return (byte)((value + values[index]) / 2);
+    }
+
     /**
      * Called the first time we need to draw when the zoom level has changed
      * or the screen is resized
      */
     private void computeIntsForThisZoomLevel() {
-        int halfHeight = (getMeasuredHeight() / 2) - 1;
-        heightsAtThisZoomLevel = new int[lenByZoomLevel[zoomLevel]];
-        for (int i = 0; i < lenByZoomLevel[zoomLevel]; i++) {
-            heightsAtThisZoomLevel[i] =
-                (int)(valuesByZoomLevel[zoomLevel][i] * halfHeight);
+        int halfHeight = (getMeasuredHeight() / channels / 2) - 1;
+        int length = lenByZoomLevel[zoomLevel] * channels;
+        minsAtThisZoomLevel = new int[length];
+        maxsAtThisZoomLevel = new int[length];
+        rmsAtThisZoomLevel = new int[length];
+        for (int i = 0; i < length; i++) {
+            minsAtThisZoomLevel[i] = minsByZoomLevel[zoomLevel][i] * halfHeight / 127;
+            maxsAtThisZoomLevel[i] = maxsByZoomLevel[zoomLevel][i] * halfHeight / 127;
+            rmsAtThisZoomLevel[i] = rmsByZoomLevel[zoomLevel][i] * halfHeight / 127;
         }
     }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Storage for 16 bits little endian PCM samples, made of fixed size chunks.
+// Appending never copies the samples already stored: when the last chunk is full, a new chunk is
+// allocated and added to the chunk directory. The samples are read back through a SampleCursor.
+// One thread may append samples while other threads read the samples appended so far through
+// cursors created with cursor().
+// Offsets are 64 bits, so a buffer can hold more than 2GB of samples (e.g. hours of audio mapped
+// from a file), as long as no single chunk does.
+class ChunkedSampleBuffer {
+    // 1MB chunks (~6sec of a stereo stream at 44.1kHz).
+    private static final int CHUNK_SHIFT = 20;
+    // 1GB chunks for memory mapped files, which only cost address space.
+    private static final int MAPPED_CHUNK_SHIFT = 30;
+
+    private final int chunkShift;
+    private volatile ByteBuffer[] chunks;  // the chunk directory.
+    private int numChunks;
+    private volatile long size;  // number of bytes appended so far.
+
+    // Create an empty buffer. Chunks are allocated (as direct buffers) when needed.
+    public ChunkedSampleBuffer() {
+        this(CHUNK_SHIFT, new ByteBuffer[16], 0, 0);
+    }
+
+    private ChunkedSampleBuffer(int chunkShift, ByteBuffer[] chunks, int numChunks, long size) {
+        this.chunkShift = chunkShift;
+        this.chunks = chunks;
+        this.numChunks = numChunks;
+        this.size = size;
+    }
+
+    // Return a buffer containing the numBytes bytes of channel starting at position, mapped in
+    // memory (read-only) rather than copied. Nothing can be appended to the returned buffer.
+    // The mapping stays valid after channel is closed.
+    public static ChunkedSampleBuffer map(FileChannel channel, long position, long numBytes)
+            throws IOException {
+        int numChunks = (int)((numBytes + (1L << MAPPED_CHUNK_SHIFT) - 1) >> MAPPED_CHUNK_SHIFT);
+        ByteBuffer[] chunks = new ByteBuffer[Math.max(1, numChunks)];
+        for (int i = 0; i < numChunks; i++) {
+            long offset = (long)i << MAPPED_CHUNK_SHIFT;
+            long length = Math.min(1L << MAPPED_CHUNK_SHIFT, numBytes - offset);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + offset, length);
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new ChunkedSampleBuffer(MAPPED_CHUNK_SHIFT, chunks, numChunks, numBytes);
+    }
+
+    // Number of bytes appended so far.
+    public long size() {
+        return size;
+    }
+
+    // Append the remaining bytes of src. Throws an OutOfMemoryError if a new chunk cannot be
+    // allocated, in which case the bytes appended so far are kept.
+    public void append(ByteBuffer src) {
+        long position = size;
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = getChunkForWrite(position);
+            int offset = (int)(position & ((1L << chunkShift) - 1));
+            int count = Math.min(src.remaining(), chunk.capacity() - offset);
+            src.limit(src.position() + count);
+            chunk.position(offset);
+            chunk.put(src);
+            src.limit(limit);
+            position += count;
+            size = position;
+        }
+    }
+
+    // Append length samples of src, starting at offset.
+    public void append(short[] src, int offset, int length) {
+        long position = size;
+        while (length > 0) {
+            ByteBuffer chunk = getChunkForWrite(position);
+            int chunkOffset = (int)(position & ((1L << chunkShift) - 1));
+            int count = Math.min(length, (chunk.capacity() - chunkOffset) / 2);
+            chunk.position(chunkOffset);
+            chunk.asShortBuffer().put(src, offset, count);
+            offset += count;
+            length -= count;
+            position += 2 * count;
+            size = position;
+        }
+    }
+
+    // Return a cursor over the first numBytes bytes of the buffer (or all the bytes appended so
+    // far, if there are less), positioned on the first sample.
+    public SampleCursor cursor(long numBytes, int channels) {
+        long available = size;  // read before the chunk directory, which may be replaced.
+        return new SampleCursor(chunks, chunkShift, Math.min(numBytes, available), channels);
+    }
+
+    private ByteBuffer getChunkForWrite(long position) {
+        int index = (int)(position >> chunkShift);
+        if (index < numChunks) {
+            return chunks[index];
+        }
+        ByteBuffer chunk = ByteBuffer.allocateDirect(1 << chunkShift);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer[] directory = chunks;
+        if (numChunks == directory.length) {
+            // Only the references to the chunks are copied.
+            directory = Arrays.copyOf(directory, 2 * numChunks);
+        }
+        directory[numChunks++] = chunk;
+        chunks = directory;
+        return chunk;
+    }
+}
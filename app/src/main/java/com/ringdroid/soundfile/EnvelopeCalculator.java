@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+// Computes the envelope of a stream of samples (see WaveformEnvelope) incrementally, as the
+// samples are decoded or recorded, so that no second pass over the samples is needed: the min,
+// max and RMS values of each channel for each frame of samplesPerFrame samples.
+class EnvelopeCalculator {
+    private int channels;
+    private int samplesPerFrame;
+    private short[] samples = new short[4096];  // samples read in bulk from byte buffers.
+
+    private int numFrames;  // number of complete frames.
+    private short[] mins;  // per channel values of each frame, see WaveformEnvelope.
+    private short[] maxs;
+    private short[] rms;
+
+    // State of the current frame.
+    private int channel;  // channel of the next sample to process.
+    private int sampleIndex;  // index of the current sample in the current frame.
+    private int[] channelMins;  // min value of each channel in the current frame so far.
+    private int[] channelMaxs;  // max value of each channel in the current frame so far.
+    private long[] channelSumSquares;  // sum of the squares of each channel in the current frame.
+
+    // expectedNumFrames is only used to size the arrays, which grow if needed.
+    public EnvelopeCalculator(int channels, int samplesPerFrame, int expectedNumFrames) {
+        this.channels = channels;
+        this.samplesPerFrame = samplesPerFrame;
+        expectedNumFrames = Math.max(expectedNumFrames, 16);
+        mins = new short[expectedNumFrames * channels];
+        maxs = new short[expectedNumFrames * channels];
+        rms = new short[expectedNumFrames * channels];
+        channelMins = new int[channels];
+        channelMaxs = new int[channels];
+        channelSumSquares = new long[channels];
+        resetChannels();
+    }
+
+    // Number of complete frames so far.
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    // Return the envelope of the complete frames so far (one block per frame). Its arrays may be
+    // longer than the number of frames until finish() is called, and are replaced by longer ones
+    // when they are full, so a returned envelope is never modified afterward.
+    public WaveformEnvelope getEnvelope() {
+        return new WaveformEnvelope(channels, samplesPerFrame, numFrames, mins, maxs, rms);
+    }
+
+    // Add the 16 bits little endian samples contained in buffer, between its position and its
+    // limit (which are left unchanged).
+    public void add(ByteBuffer buffer) {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer shorts = bytes.asShortBuffer();
+        while (shorts.hasRemaining()) {
+            int length = Math.min(shorts.remaining(), samples.length);
+            shorts.get(samples, 0, length);
+            add(samples, 0, length);
+        }
+    }
+
+    // Add length samples of buffer, starting at offset.
+    public void add(short[] buffer, int offset, int length) {
+        for (int end = offset + length; offset < end; offset++) {
+            int sample = buffer[offset];
+            if (channelMins[channel] > sample) {
+                channelMins[channel] = sample;
+            }
+            if (channelMaxs[channel] < sample) {
+                channelMaxs[channel] = sample;
+            }
+            channelSumSquares[channel] += sample * sample;
+            if (++channel < channels) {
+                continue;
+            }
+            channel = 0;
+            if (++sampleIndex == samplesPerFrame) {
+                setFrame(numFrames++);
+                resetChannels();
+                sampleIndex = 0;
+            }
+        }
+    }
+
+    // Add the last, incomplete, frame (if any) once all the samples have been added, and trim the
+    // arrays to the number of frames.
+    public void finish() {
+        if (sampleIndex > 0 || channel > 0) {
+            setFrame(numFrames++);
+            resetChannels();
+            sampleIndex = 0;
+            channel = 0;
+        }
+        if (mins.length != numFrames * channels) {
+            mins = Arrays.copyOf(mins, numFrames * channels);
+            maxs = Arrays.copyOf(maxs, numFrames * channels);
+            rms = Arrays.copyOf(rms, numFrames * channels);
+        }
+    }
+
+    private void setFrame(int frame) {
+        if ((frame + 1) * channels > mins.length) {
+            // The number of frames was underestimated. Add 10% more frames.
+            int length = (frame + 1 + mins.length / channels / 10) * channels;
+            mins = Arrays.copyOf(mins, length);
+            maxs = Arrays.copyOf(maxs, length);
+            rms = Arrays.copyOf(rms, length);
+        }
+        // The RMS is computed over the samples of the frame, which may be incomplete.
+        int numSamples = (channel > 0) ? sampleIndex + 1 : sampleIndex;
+        for (int c = 0, i = frame * channels; c < channels; c++, i++) {
+            if (channelMins[c] > channelMaxs[c]) {
+                // No sample for this channel (incomplete last sample).
+                mins[i] = maxs[i] = rms[i] = 0;
+                continue;
+            }
+            mins[i] = (short)channelMins[c];
+            maxs[i] = (short)channelMaxs[c];
+            rms[i] = (short)Math.min(Short.MAX_VALUE,
+                    Math.sqrt((double)channelSumSquares[c] / numSamples));
+        }
+    }
+
+    private void resetChannels() {
+        for (int c = 0; c < channels; c++) {
+            channelMins[c] = Integer.MAX_VALUE;
+            channelMaxs[c] = Integer.MIN_VALUE;
+            channelSumSquares[c] = 0;
+        }
+    }
+}
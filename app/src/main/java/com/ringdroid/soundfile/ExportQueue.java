@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.util.Log;
+
+// Queue of export jobs, processed in the background by a fixed number of worker threads.
+// A job exports several ranges of one source file, each to its own output file, in one format.
+// Jobs are processed in the order they were submitted, several at a time. A source is decoded
+// once and shared by all the queued jobs using it (and the decoded samples of a file decoded
+// before are read from the SoundFile cache directory, see SoundFile.setCacheDirectory()), unless
+// the job is given a SoundFile already decoded, e.g. the one of an editor.
+// The progress of each job, and of the whole queue, counts the bytes written to the output file
+// being exported, so it moves while a long range is exported (see getProgress()).
+// The queue lives until shutdown() is called, so it can outlive the activity which created it.
+public class ExportQueue {
+    // Maximum number of codecs used at the same time. Most devices support more instances of
+    // their AAC encoder, but running more codecs than that does not make exports faster.
+    private static final int MAX_CODEC_INSTANCES = 4;
+
+    // Output formats.
+    public static final int FORMAT_M4A = 0;  // AAC, copied from AAC sources if possible.
+    public static final int FORMAT_WAV = 1;  // 16 bits PCM (RF64 above 4GB).
+    public static final int FORMAT_MP3 = 2;  // frames copied from MP3 sources only.
+
+    // Job states.
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    // Listener notified of the progress of the jobs. Methods are called on the worker threads
+    // (or on the thread cancelling a queued job), at most once per percent of progress.
+    public interface Listener {
+        // fraction is the fraction of job exported so far (see Job.getProgress()).
+        void onJobProgress(Job job, double fraction);
+
+        // Called once job is done, has failed (see Job.getError()) or has been cancelled.
+        void onJobFinished(Job job);
+
+        // fraction is the progress of the whole queue (see ExportQueue.getProgress()).
+        void onQueueProgress(double fraction);
+    }
+
+    // An export job: ranges of a source file, each exported to an output file.
+    public static class Job {
+        private final File source;
+        private final SoundFile soundFile;  // the decoded source, null if decoded by the queue.
+        private final int format;
+        private final List<float[]> ranges = new ArrayList<float[]>();  // {start, end} in seconds.
+        private final List<File> outputFiles = new ArrayList<File>();
+        private boolean copyAllowed = true;
+        private boolean validate = true;
+
+        private volatile int state = STATE_QUEUED;
+        private volatile boolean cancelled;
+        private volatile int numRangesDone;
+        private volatile long numBytesWritten;
+        private volatile long startTimeMs;
+        private volatile long endTimeMs;
+        private volatile Exception error;
+        private volatile File currentOutputFile;  // output file of the range being exported.
+        private volatile long currentExpectedSize;  // estimated size of currentOutputFile.
+        private volatile double encodeFraction = -1;  // fraction of the range encoded, if known.
+        private double reportedProgress;  // last progress passed to the listener.
+
+        public Job(File source, int format) {
+            this.source = source;
+            this.format = format;
+            soundFile = null;
+        }
+
+        // Same as above, for a source already decoded (and fully decoded: the ranges are not
+        // exported past the samples decoded when the job runs). soundFile must have been read
+        // from a file, not recorded.
+        public Job(SoundFile soundFile, int format) {
+            this.source = soundFile.getInputFile();
+            this.format = format;
+            this.soundFile = soundFile;
+        }
+
+        // Export [startTime, endTime) (in seconds) of the source to outputFile.
+        public Job addRange(float startTime, float endTime, File outputFile) {
+            ranges.add(new float[] {startTime, endTime});
+            outputFiles.add(outputFile);
+            return this;
+        }
+
+        // Whether AAC sources may be cut without re-encoding them (FORMAT_M4A). Default: true.
+        public Job setCopyAllowed(boolean copyAllowed) {
+            this.copyAllowed = copyAllowed;
+            return this;
+        }
+
+        // Whether each output file is checked with SoundFileValidator. Default: true.
+        public Job setValidate(boolean validate) {
+            this.validate = validate;
+            return this;
+        }
+
+        public File getSource() {
+            return source;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+
+        public int getNumRanges() {
+            return ranges.size();
+        }
+
+        public File getOutputFile(int range) {
+            return outputFiles.get(range);
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        // Number of ranges exported so far.
+        public int getNumRangesDone() {
+            return numRangesDone;
+        }
+
+        // Exception which made the job fail, null if it has not failed.
+        public Exception getError() {
+            return error;
+        }
+
+        // Total size of the output files written so far, including the file being written.
+        public long getNumBytesWritten() {
+            File current = currentOutputFile;
+            return numBytesWritten + ((current != null) ? current.length() : 0);
+        }
+
+        // Fraction of the job exported so far: the ranges exported, plus the fraction of the
+        // range being exported (the part encoded, or the size of its output file so far compared
+        // to its estimated size).
+        public double getProgress() {
+            if (state == STATE_DONE) {
+                return 1;
+            }
+            if (ranges.isEmpty()) {
+                return 0;
+            }
+            double rangeFraction = 0;
+            File current = currentOutputFile;
+            if (current != null) {
+                long expectedSize = currentExpectedSize;
+                if (encodeFraction >= 0) {
+                    rangeFraction = encodeFraction;
+                } else if (expectedSize > 0) {
+                    rangeFraction = Math.min(1, (double)current.length() / expectedSize);
+                }
+            }
+            return Math.min(1, (numRangesDone + rangeFraction) / ranges.size());
+        }
+
+        // Time spent running the job so far (including decoding the source), in ms.
+        public long getElapsedTimeMs() {
+            if (startTimeMs == 0) {
+                return 0;
+            }
+            return ((endTimeMs != 0) ? endTimeMs : System.currentTimeMillis()) - startTimeMs;
+        }
+
+        // Average output throughput of the job, in bytes per second.
+        public double getThroughput() {
+            long elapsedTimeMs = getElapsedTimeMs();
+            return (elapsedTimeMs > 0) ? getNumBytesWritten() * 1000.0 / elapsedTimeMs : 0;
+        }
+    }
+
+    // A source file shared by the queued jobs using it.
+    private static class Source {
+        int numJobs;  // number of queued or running jobs using the source.
+        SoundFile soundFile;  // null until decoded.
+    }
+
+    private final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+    // Jobs queued or running. Guards numFinishedJobs too.
+    private final List<Job> unfinishedJobs = new ArrayList<Job>();
+    private int numFinishedJobs;  // jobs finished since the queue was last empty.
+    private final Thread[] workers;
+    private final Listener listener;
+    private volatile boolean shutdown;
+
+    // Create a queue processing up to numWorkers jobs at the same time (see
+    // getDefaultNumWorkers()). listener may be null.
+    public ExportQueue(int numWorkers, Listener listener) {
+        this.listener = listener;
+        workers = new Thread[Math.max(1, numWorkers)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread("ExportQueue-" + i) {
+                public void run() {
+                    runWorker();
+                }
+            };
+            workers[i].start();
+        }
+    }
+
+    // One worker per core, within the number of codecs which can run at the same time.
+    public static int getDefaultNumWorkers() {
+        return Math.max(1, Math.min(MAX_CODEC_INSTANCES,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Add job at the end of the queue.
+    public void submit(Job job) {
+        if (shutdown) {
+            throw new IllegalStateException("ExportQueue has been shut down");
+        }
+        if (job.soundFile == null) {
+            acquireSource(job.source);
+        }
+        synchronized (unfinishedJobs) {
+            unfinishedJobs.add(job);
+        }
+        jobs.add(job);
+    }
+
+    // Cancel job. A running job stops as soon as possible (encodings are stopped, copies end
+    // with the range being copied); a queued job is dropped. The listener is notified either
+    // way.
+    public void cancel(Job job) {
+        job.cancelled = true;
+        if (jobs.remove(job)) {
+            finish(job, STATE_CANCELLED);
+        }
+    }
+
+    // Number of jobs waiting in the queue (not including the running ones).
+    public int getNumQueuedJobs() {
+        return jobs.size();
+    }
+
+    // Number of jobs queued or running.
+    public int getNumUnfinishedJobs() {
+        synchronized (unfinishedJobs) {
+            return unfinishedJobs.size();
+        }
+    }
+
+    // Progress of the jobs submitted since the queue was last empty: the finished jobs count as
+    // done, and the others for their own progress (see Job.getProgress()). 1 if the queue is
+    // empty.
+    public double getProgress() {
+        synchronized (unfinishedJobs) {
+            int numJobs = numFinishedJobs + unfinishedJobs.size();
+            if (numJobs == 0) {
+                return 1;
+            }
+            double numJobsDone = numFinishedJobs;
+            for (Job job : unfinishedJobs) {
+                numJobsDone += job.getProgress();
+            }
+            return numJobsDone / numJobs;
+        }
+    }
+
+    // Cancel all the jobs, and stop the workers once their current range is exported.
+    public void shutdown() {
+        shutdown = true;
+        List<Job> queued = new ArrayList<Job>();
+        jobs.drainTo(queued);
+        for (Job job : queued) {
+            job.cancelled = true;
+            finish(job, STATE_CANCELLED);
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void runWorker() {
+        while (!shutdown) {
+            Job job;
+            try {
+                job = jobs.take();
+            } catch (InterruptedException e) {
+                return;  // shutdown() was called.
+            }
+            if (job.cancelled) {
+                finish(job, STATE_CANCELLED);
+                continue;
+            }
+            job.state = STATE_RUNNING;
+            job.startTimeMs = System.currentTimeMillis();
+            try {
+                runJob(job);
+                finish(job, job.cancelled ? STATE_CANCELLED : STATE_DONE);
+            } catch (InterruptedIOException e) {
+                finish(job, STATE_CANCELLED);  // The encoding was stopped by cancel().
+            } catch (Exception e) {
+                StringWriter writer = new StringWriter();
+                e.printStackTrace(new PrintWriter(writer));
+                Log.e("ExportQueue", "runWorker() failed to export " + job.source + "\n" +
+                        writer.toString());
+                job.error = e;
+                finish(job, STATE_FAILED);
+            }
+        }
+    }
+
+    private void runJob(final Job job) throws Exception {
+        SoundFile soundFile = (job.soundFile != null) ? job.soundFile : getSoundFile(job.source);
+        for (int i = 0; i < job.ranges.size() && !job.cancelled && !shutdown; i++) {
+            float[] range = job.ranges.get(i);
+            File outputFile = job.outputFiles.get(i);
+            job.currentExpectedSize = estimateSize(soundFile, job.format, range[0], range[1]);
+            job.encodeFraction = -1;
+            job.currentOutputFile = outputFile;
+            try {
+                export(soundFile, job, range[0], range[1], outputFile);
+                if (job.validate) {
+                    SoundFileValidator.validate(outputFile);
+                }
+            } catch (Exception e) {
+                job.currentOutputFile = null;
+                outputFile.delete();
+                throw e;
+            }
+            // In this order, so that the progress never goes backward.
+            long size = outputFile.length();
+            job.currentOutputFile = null;
+            job.numBytesWritten += size;
+            job.numRangesDone = i + 1;
+            reportProgress(job);
+        }
+    }
+
+    private void export(SoundFile soundFile, final Job job, float startTime, float endTime,
+            File outputFile) throws IOException {
+        switch (job.format) {
+            case FORMAT_M4A:
+                if (!job.copyAllowed ||
+                        !soundFile.CopyAACFile(outputFile, startTime, endTime)) {
+                    soundFile.WriteFile(outputFile, startTime, endTime,
+                            new SoundFile.ProgressListener() {
+                                public boolean reportProgress(double fractionComplete) {
+                                    job.encodeFraction = fractionComplete;
+                                    ExportQueue.this.reportProgress(job);
+                                    return !job.cancelled && !shutdown;
+                                }
+                            });
+                }
+                break;
+            case FORMAT_WAV:
+                soundFile.WriteWAVFile(outputFile, startTime, endTime);
+                break;
+            case FORMAT_MP3:
+                if (!soundFile.CopyMP3File(outputFile, startTime, endTime)) {
+                    throw new IOException("Cannot copy MP3 frames from " + job.source);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid format: " + job.format);
+        }
+    }
+
+    // Estimated size of the output file of [startTime, endTime), to report the progress of the
+    // exports which are not encoded: exact for WAV files, from the bit rate of the source for
+    // copied frames.
+    private static long estimateSize(SoundFile soundFile, int format, float startTime,
+            float endTime) {
+        double duration = Math.max(0, (double)endTime - startTime);
+        if (format == FORMAT_WAV) {
+            return (long)(duration * soundFile.getSampleRate()) * soundFile.getChannels() * 2;
+        }
+        return (long)(duration * soundFile.getAvgBitrateKbps() * 1000 / 8);
+    }
+
+    // Notify the listener of the progress of job and of the queue, if job progressed by at least
+    // one percent since the last notification.
+    private void reportProgress(Job job) {
+        if (listener == null) {
+            return;
+        }
+        double progress = job.getProgress();
+        if (progress < job.reportedProgress + 0.01 && progress < 1) {
+            return;
+        }
+        job.reportedProgress = progress;
+        listener.onJobProgress(job, progress);
+        listener.onQueueProgress(getProgress());
+    }
+
+    private void finish(Job job, int state) {
+        job.state = state;
+        job.endTimeMs = System.currentTimeMillis();
+        if (job.soundFile == null) {
+            releaseSource(job.source);
+        }
+        synchronized (unfinishedJobs) {
+            unfinishedJobs.remove(job);
+            // The progress of the queue starts over once it is empty.
+            numFinishedJobs = unfinishedJobs.isEmpty() ? 0 : numFinishedJobs + 1;
+        }
+        if (listener != null) {
+            listener.onJobFinished(job);
+            listener.onQueueProgress(getProgress());
+        }
+    }
+
+    private void acquireSource(File file) {
+        synchronized (sources) {
+            Source source = sources.get(file.getAbsolutePath());
+            if (source == null) {
+                source = new Source();
+                sources.put(file.getAbsolutePath(), source);
+            }
+            source.numJobs++;
+        }
+    }
+
+    // Forget the source once no queued job uses it.
+    private void releaseSource(File file) {
+        synchronized (sources) {
+            Source source = sources.get(file.getAbsolutePath());
+            if (source != null && --source.numJobs == 0) {
+                sources.remove(file.getAbsolutePath());
+            }
+        }
+    }
+
+    // Return the decoded source, decoding it if no other job has. Workers needing a source being
+    // decoded wait for it.
+    private SoundFile getSoundFile(File file) throws Exception {
+        Source source;
+        synchronized (sources) {
+            source = sources.get(file.getAbsolutePath());
+        }
+        synchronized (source) {
+            if (source.soundFile == null) {
+                SoundFile soundFile = SoundFile.create(file.getPath(),
+                        new SoundFile.ProgressListener() {
+                            public boolean reportProgress(double fractionComplete) {
+                                return !shutdown;
+                            }
+                        });
+                if (soundFile == null || shutdown) {
+                    throw new IOException("Failed to decode " + file);
+                }
+                source.soundFile = soundFile;
+            }
+            return source.soundFile;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.util.Log;
+
+// Exports the same selection of a SoundFile to several outputs (sinks) at the same time, e.g. an
+// .m4a and a .wav file. The samples of the selection are read once, and each view of the samples
+// is passed to all the sinks. Each sink runs on its own thread and receives the views through its
+// own bounded queue, so the export takes the time of the slowest sink rather than the sum of
+// them, while the fastest sinks never get more than QUEUE_CAPACITY views ahead.
+// The views are not copied: they share their content with the SoundFile.
+// A sink failing does not stop the others; see getError().
+public class FanOutExporter {
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int VIEW_SIZE = 1 << 16;  // size of the views passed to the sinks.
+    private static final ByteBuffer END = ByteBuffer.allocate(0);  // marks the end of the samples.
+
+    // Output of a FanOutExporter.
+    interface Sink {
+        // Write the numSamples samples (per channel) read from input. Called on the sink thread.
+        void export(Input input, int sampleRate, int channels, long numSamples)
+                throws IOException;
+
+        // Delete the output, after export() failed or was interrupted.
+        void abort();
+    }
+
+    // Samples of the selection, as received by a sink.
+    static class Input implements SampleReader {
+        private final ArrayBlockingQueue<ByteBuffer> queue =
+                new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY);
+        private final int channels;
+        private ByteBuffer current;  // view being read by read().
+        private boolean done;  // set once END has been received.
+        private boolean interrupted;
+
+        Input(int channels) {
+            this.channels = channels;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        // Return the next view of samples (16 bits, little endian, channels interleaved), waiting
+        // for it if needed, or null at the end of the samples. The view is read-only.
+        public ByteBuffer next() throws InterruptedIOException {
+            if (current != null && current.hasRemaining()) {
+                ByteBuffer view = current;
+                current = null;
+                return view;
+            }
+            if (done) {
+                return null;
+            }
+            ByteBuffer view;
+            try {
+                view = queue.take();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw new InterruptedIOException("Export interrupted");
+            }
+            if (view == END) {
+                done = true;
+                return null;
+            }
+            return view;
+        }
+
+        // Same as SampleCursor.read(). Returns less than length values if the export has been
+        // interrupted.
+        public int read(short[] dst, int offset, int length) {
+            int read = 0;
+            while (read < length) {
+                if (current == null || !current.hasRemaining()) {
+                    try {
+                        current = next();
+                    } catch (InterruptedIOException e) {
+                        break;
+                    }
+                    if (current == null) {
+                        break;
+                    }
+                }
+                int count = Math.min(length - read, current.remaining() / 2);
+                current.asShortBuffer().get(dst, offset + read, count);
+                current.position(current.position() + 2 * count);
+                read += count;
+            }
+            return read;
+        }
+
+        // Skip the samples left, so that the exporter never waits for this sink.
+        private void drain() {
+            current = null;
+            while (!done && !interrupted) {
+                try {
+                    next();
+                } catch (InterruptedIOException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Thread running a sink.
+    private static class SinkThread extends Thread {
+        final Sink sink;
+        final Input input;
+        int sampleRate;
+        long numSamples;
+        volatile Exception error;
+
+        SinkThread(Sink sink, int channels) {
+            this.sink = sink;
+            input = new Input(channels);
+        }
+
+        public void run() {
+            try {
+                sink.export(input, sampleRate, input.getChannels(), numSamples);
+                if (input.interrupted) {
+                    throw new InterruptedIOException("Export interrupted");
+                }
+            } catch (Exception e) {
+                StringWriter writer = new StringWriter();
+                e.printStackTrace(new PrintWriter(writer));
+                Log.e("FanOutExporter", "run() sink failed\n" + writer.toString());
+                error = e;
+                sink.abort();
+            } finally {
+                input.drain();
+            }
+        }
+    }
+
+    private final SoundFile soundFile;
+    private final List<Sink> sinks = new ArrayList<Sink>();
+    private Exception[] errors;
+
+    public FanOutExporter(SoundFile soundFile) {
+        this.soundFile = soundFile;
+    }
+
+    // Add a sink. Returns its index, for getError().
+    int addSink(Sink sink) {
+        sinks.add(sink);
+        return sinks.size() - 1;
+    }
+
+    // Add an .m4a file, encoded as SoundFile.WriteFile() does.
+    public int addAACFile(final File outputFile) {
+        return addSink(new Sink() {
+            public void export(Input input, int sampleRate, int channels, long numSamples)
+                    throws IOException {
+                soundFile.encodeAACFile(outputFile, input, numSamples);
+            }
+
+            public void abort() {
+                outputFile.delete();
+            }
+        });
+    }
+
+    // Add a .wav (or .w64) file, written as SoundFile.WriteWAVFile() does.
+    public int addWAVFile(final File outputFile) {
+        return addSink(new Sink() {
+            public void export(Input input, int sampleRate, int channels, long numSamples)
+                    throws IOException {
+                WAVFileWriter writer =
+                        new WAVFileWriter(outputFile, sampleRate, channels, numSamples);
+                try {
+                    ByteBuffer view;
+                    while ((view = input.next()) != null) {
+                        writer.write(view);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    writer.abort();
+                    throw e;
+                }
+                writer.close();
+            }
+
+            public void abort() {
+                outputFile.delete();
+            }
+        });
+    }
+
+    // Export [startTime, endTime) (in seconds) to all the sinks, and wait until they are done.
+    // Failed sinks are reported by getError(). If the calling thread is interrupted, all the
+    // sinks are aborted and an InterruptedIOException is thrown.
+    public void export(float startTime, float endTime) throws InterruptedIOException {
+        int sampleRate = soundFile.getSampleRate();
+        export((long)((double)startTime * sampleRate),
+                Math.max(0, (long)(((double)endTime - startTime) * sampleRate)));
+    }
+
+    // Same as above, for numFrames frames starting at startFrame, as SoundFile.WriteFile() and
+    // SoundFile.WriteWAVFile() count them.
+    public void export(int startFrame, int numFrames) throws InterruptedIOException {
+        export((long)startFrame * soundFile.getSamplesPerFrame(),
+                (long)Math.max(0, numFrames) * soundFile.getSamplesPerFrame());
+    }
+
+    private void export(long startSample, long numSamples) throws InterruptedIOException {
+        int sampleRate = soundFile.getSampleRate();
+        int channels = soundFile.getChannels();
+        SinkThread[] threads = new SinkThread[sinks.size()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new SinkThread(sinks.get(i), channels);
+            threads[i].sampleRate = sampleRate;
+            threads[i].numSamples = numSamples;
+            threads[i].start();
+        }
+        try {
+            SampleCursor cursor = soundFile.getSampleCursor();
+            cursor.seek(startSample);
+            long numBytes = numSamples * channels * 2;
+            long numBytesRead = 0;
+            ByteBuffer view;
+            while (numBytesRead < numBytes &&
+                    (view = cursor.nextBuffer((int)Math.min(VIEW_SIZE, numBytes - numBytesRead)))
+                            != null) {
+                numBytesRead += view.remaining();
+                for (SinkThread thread : threads) {
+                    if (thread.error == null) {  // Failed sinks only wait for END.
+                        ByteBuffer sinkView = view.asReadOnlyBuffer();
+                        sinkView.order(ByteOrder.LITTLE_ENDIAN);
+                        thread.input.queue.put(sinkView);
+                    }
+                }
+            }
+            for (SinkThread thread : threads) {
+                thread.input.queue.put(END);
+            }
+            for (SinkThread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (SinkThread thread : threads) {
+                thread.interrupt();
+                // Also wake up a codec thread waiting for samples (see Input.read()).
+                thread.input.queue.clear();
+                thread.input.queue.offer(END);
+            }
+            for (SinkThread thread : threads) {
+                joinUninterruptibly(thread);
+            }
+            throw new InterruptedIOException("Export interrupted");
+        } finally {
+            errors = new Exception[threads.length];
+            for (int i = 0; i < threads.length; i++) {
+                errors[i] = threads[i].error;
+            }
+        }
+    }
+
+    // Exception which made the sink with the given index fail during the last export, null if it
+    // succeeded.
+    public Exception getError(int sink) {
+        return (errors != null) ? errors[sink] : null;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
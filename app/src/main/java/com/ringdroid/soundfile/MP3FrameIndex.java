@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.util.Log;
+
+// Index of the frames of an MPEG audio (MP3) file, built by walking the frame headers without
+// decoding anything. Gives the exact offset and length of every frame, and so the exact byte
+// offset of any sample, and the exact duration of VBR files.
+// The Xing/Info or VBRI frame written by VBR encoders at the beginning of the stream is not an
+// audio frame and is not part of the index; the number of frames it announces is only used as a
+// hint. The encoder delay and padding are read from the LAME tag, if any.
+public class MP3FrameIndex {
+    // Bit rates in kbps, by [version == MPEG1 ? 0 : 1][layer - 1][bit rate index].
+    private static final int[][][] BIT_RATES = {
+        {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+        },
+        {
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+        },
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+    // Version field values.
+    private static final int MPEG25 = 0;
+    private static final int MPEG2 = 2;
+    private static final int MPEG1 = 3;
+
+    private int firstHeader;  // header of the first audio frame.
+    private int sampleRate;
+    private int channels;
+    private int samplesPerFrame;
+    private int numFrames;
+    private long[] frameOffsets;  // offset of each frame in the file.
+    private int[] frameLens;  // length of each frame, in bytes.
+    private int encoderDelay;  // samples added by the encoder before the first sample.
+    private int encoderPadding;  // samples added by the encoder after the last sample.
+
+    private MP3FrameIndex() {
+    }
+
+    // Index the frames of file. Returns null if file does not contain any MPEG audio frame.
+    public static MP3FrameIndex scan(File file) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return scan(buffer);
+        } catch (IOException e) {
+            Log.w("MP3FrameIndex", "scan() failed to read " + file + "\n" + e.toString());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+    }
+
+    // Index the frames contained in buffer (a whole file).
+    static MP3FrameIndex scan(ByteBuffer buffer) {
+        int size = buffer.limit();
+        int position = skipID3v2(buffer);
+        // Find the first frame, confirmed by the header of the next one.
+        int header = 0;
+        while (position + 4 <= size) {
+            header = buffer.getInt(position);
+            int length = getHeaderFrameLength(header);
+            if (length > 0 && (position + length + 4 > size ||
+                    isSameStream(header, buffer.getInt(position + length)))) {
+                break;
+            }
+            position++;
+        }
+        if (position + 4 > size) {
+            return null;
+        }
+
+        MP3FrameIndex index = new MP3FrameIndex();
+        int layer = 4 - ((header >> 17) & 3);
+        index.sampleRate = getSampleRate(header);
+        index.channels = (((header >> 6) & 3) == 3) ? 1 : 2;
+        index.samplesPerFrame = getSamplesPerFrame(header);
+        int capacity = Math.max(16, size / Math.max(1, getHeaderFrameLength(header)) + 16);
+        if (layer == 3) {
+            // An Xing/Info or VBRI frame may replace the first audio frame.
+            int numFrames = index.parseVBRHeader(buffer, position, header);
+            if (numFrames >= 0) {
+                capacity = Math.min(numFrames + 1, capacity);  // the header may be wrong.
+                position += getHeaderFrameLength(header);
+            }
+        }
+
+        index.frameOffsets = new long[capacity];
+        index.frameLens = new int[capacity];
+        int firstHeader = header;
+        index.firstHeader = header;
+        while (position + 4 <= size) {
+            header = buffer.getInt(position);
+            int length = getHeaderFrameLength(header);
+            if (length <= 0 || !isSameStream(firstHeader, header)) {
+                if (isTag(buffer, position)) {
+                    break;  // ID3v1 or APE tag at the end of the file.
+                }
+                position++;  // garbage between frames: resynchronize.
+                continue;
+            }
+            length = Math.min(length, size - position);  // truncated last frame.
+            index.add(position, length);
+            position += length;
+        }
+        if (index.numFrames == 0) {
+            return null;
+        }
+        return index;
+    }
+
+    // Header of the first audio frame (its version, layer, sample rate and channel mode are
+    // shared by all the frames).
+    public int getFirstHeader() {
+        return firstHeader;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    // Number of samples per channel in each frame (1152 for MPEG1 layer III).
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public long getFrameOffset(int frame) {
+        return frameOffsets[frame];
+    }
+
+    public int getFrameLength(int frame) {
+        return frameLens[frame];
+    }
+
+    public int getEncoderDelay() {
+        return encoderDelay;
+    }
+
+    public int getEncoderPadding() {
+        return encoderPadding;
+    }
+
+    // Offset of the first audio frame, and of the end of the last one.
+    public long getDataStart() {
+        return frameOffsets[0];
+    }
+
+    public long getDataEnd() {
+        return frameOffsets[numFrames - 1] + frameLens[numFrames - 1];
+    }
+
+    // Number of samples per channel once the encoder delay and padding are removed.
+    public long getNumSamples() {
+        return Math.max(0, (long)numFrames * samplesPerFrame - encoderDelay - encoderPadding);
+    }
+
+    public long getDurationUs() {
+        return getNumSamples() * 1000000 / sampleRate;
+    }
+
+    // Index of the frame containing sample, a sample index of the decoded frames (i.e. counting
+    // the encoder delay). Clamped to the frames of the file.
+    public int getFrameForSample(long sample) {
+        return (int)Math.max(0, Math.min(sample / samplesPerFrame, numFrames - 1));
+    }
+
+    // Index of the frame presented at timeUs.
+    public int getFrameForTimeUs(long timeUs) {
+        return getFrameForSample(timeUs * sampleRate / 1000000);
+    }
+
+    // Presentation time of the first sample of frame.
+    public long getFrameTimeUs(int frame) {
+        return (long)frame * samplesPerFrame * 1000000 / sampleRate;
+    }
+
+    // Number of frames preceding frame that contain part of its main data. A layer III frame
+    // may start its main data in the unused space of the previous frames (the "bit reservoir"),
+    // in which case it can only be decoded if these frames are decoded first.
+    public int getReservoirFrames(FileChannel channel, int frame) throws IOException {
+        if (4 - ((firstHeader >> 17) & 3) != 3) {
+            return 0;
+        }
+        // Header (4 bytes), CRC (2 bytes, if any) and the first 2 bytes of the side information.
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        int length = readHeader(channel, frame, buffer);
+        int crcSize = ((buffer.getInt(0) >> 16) & 1) == 0 ? 2 : 0;
+        // main_data_begin: the first 9 bits (MPEG1) or 8 bits (MPEG2/2.5) of the side
+        // information, i.e. how many bytes before the side information end the main data starts.
+        int mainDataBegin;
+        if (((firstHeader >> 19) & 3) == MPEG1) {
+            if (length < 6 + crcSize) {
+                throw new IOException("Frame " + frame + " too short: " + length + " bytes");
+            }
+            mainDataBegin = ((buffer.get(4 + crcSize) & 0xFF) << 1) |
+                    ((buffer.get(5 + crcSize) & 0xFF) >> 7);
+        } else {
+            if (length < 5 + crcSize) {
+                throw new IOException("Frame " + frame + " too short: " + length + " bytes");
+            }
+            mainDataBegin = buffer.get(4 + crcSize) & 0xFF;
+        }
+        int available = 0;
+        int k = frame;
+        while (available < mainDataBegin && k > 0) {
+            k--;
+            if (readHeader(channel, k, buffer) < 4) {
+                throw new IOException("Frame " + k + " too short");
+            }
+            crcSize = ((buffer.getInt(0) >> 16) & 1) == 0 ? 2 : 0;
+            available += frameLens[k] - 4 - crcSize - getSideInfoSize(buffer.getInt(0));
+        }
+        return frame - k;
+    }
+
+    // Read the header of frame, and the first bytes of its side information, into buffer, within
+    // the frame. Returns the number of bytes read.
+    private int readHeader(FileChannel channel, int frame, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(Math.min(buffer.capacity(), frameLens[frame]));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, frameOffsets[frame] + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.position();
+    }
+
+    private void add(int offset, int length) {
+        if (numFrames == frameOffsets.length) {
+            frameOffsets = Arrays.copyOf(frameOffsets, 2 * numFrames);
+            frameLens = Arrays.copyOf(frameLens, 2 * numFrames);
+        }
+        frameOffsets[numFrames] = offset;
+        frameLens[numFrames] = length;
+        numFrames++;
+    }
+
+    // Parse the Xing/Info or VBRI header possibly contained in the layer III frame at position.
+    // Returns the number of audio frames announced by the header (0 if unknown), or -1 if the
+    // frame is a regular audio frame.
+    private int parseVBRHeader(ByteBuffer buffer, int position, int header) {
+        int size = buffer.limit();
+        // The Xing header follows the side information.
+        int xing = position + 4 + getSideInfoSize(header);
+        if (xing + 8 <= size && (buffer.getInt(xing) == fourCC("Xing") ||
+                buffer.getInt(xing) == fourCC("Info"))) {
+            int flags = buffer.getInt(xing + 4);
+            int offset = xing + 8;
+            int numFrames = 0;
+            if ((flags & 1) != 0 && offset + 4 <= size) {
+                numFrames = buffer.getInt(offset);
+                offset += 4;
+            }
+            if ((flags & 2) != 0) {
+                offset += 4;  // number of bytes.
+            }
+            if ((flags & 4) != 0) {
+                offset += 100;  // seek table, superseded by the index.
+            }
+            if ((flags & 8) != 0) {
+                offset += 4;  // quality.
+            }
+            // LAME tag: encoder version (9 bytes), ..., then the delay and padding (12 bits each).
+            if (offset + 24 <= size && buffer.getInt(offset) == fourCC("LAME")) {
+                int delayPadding = ((buffer.get(offset + 21) & 0xFF) << 16) |
+                        ((buffer.get(offset + 22) & 0xFF) << 8) | (buffer.get(offset + 23) & 0xFF);
+                encoderDelay = delayPadding >> 12;
+                encoderPadding = delayPadding & 0xFFF;
+            }
+            return Math.max(0, numFrames);
+        }
+        // The VBRI header is 32 bytes after the frame header, whatever the stream.
+        int vbri = position + 4 + 32;
+        if (vbri + 18 <= size && buffer.getInt(vbri) == fourCC("VBRI")) {
+            return Math.max(0, buffer.getInt(vbri + 14));
+        }
+        return -1;
+    }
+
+    // Return the number of bytes of the ID3v2 tag at the beginning of buffer (0 if none).
+    private static int skipID3v2(ByteBuffer buffer) {
+        if (buffer.limit() < 10 || buffer.get(0) != 'I' || buffer.get(1) != 'D' ||
+                buffer.get(2) != '3') {
+            return 0;
+        }
+        // The size is a 28 bits "synchsafe" integer (7 bits per byte).
+        int size = ((buffer.get(6) & 0x7F) << 21) | ((buffer.get(7) & 0x7F) << 14) |
+                ((buffer.get(8) & 0x7F) << 7) | (buffer.get(9) & 0x7F);
+        int footer = ((buffer.get(5) & 0x10) != 0) ? 10 : 0;
+        return Math.min(buffer.limit(), 10 + size + footer);
+    }
+
+    private static boolean isTag(ByteBuffer buffer, int position) {
+        if (position + 3 <= buffer.limit() && buffer.get(position) == 'T' &&
+                buffer.get(position + 1) == 'A' && buffer.get(position + 2) == 'G') {
+            return true;
+        }
+        return position + 8 <= buffer.limit() && buffer.getInt(position) == fourCC("APET") &&
+                buffer.getInt(position + 4) == fourCC("AGEX");
+    }
+
+    // Whether header is a valid frame header with the same version, layer and sample rate as
+    // first (which change neither within a stream).
+    private static boolean isSameStream(int first, int header) {
+        return getHeaderFrameLength(header) > 0 &&
+                (first & 0xFFFE0C00) == (header & 0xFFFE0C00);
+    }
+
+    // Return the length in bytes of the frame starting with header, or 0 if header is not a
+    // valid frame header (free format frames are not supported).
+    static int getHeaderFrameLength(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) {
+            return 0;
+        }
+        int version = (header >> 19) & 3;
+        int layer = 4 - ((header >> 17) & 3);
+        int bitRateIndex = (header >> 12) & 15;
+        int sampleRate = getSampleRate(header);
+        if (version == 1 || layer == 4 || bitRateIndex == 0 || bitRateIndex == 15 ||
+                sampleRate == 0) {
+            return 0;
+        }
+        int bitRate = BIT_RATES[version == MPEG1 ? 0 : 1][layer - 1][bitRateIndex] * 1000;
+        int padding = (header >> 9) & 1;
+        if (layer == 1) {
+            return (12 * bitRate / sampleRate + padding) * 4;
+        }
+        if (layer == 3 && version != MPEG1) {
+            return 72 * bitRate / sampleRate + padding;
+        }
+        return 144 * bitRate / sampleRate + padding;
+    }
+
+    // Size of the side information of the layer III frame starting with header.
+    static int getSideInfoSize(int header) {
+        boolean mono = ((header >> 6) & 3) == 3;
+        if (((header >> 19) & 3) == MPEG1) {
+            return mono ? 17 : 32;
+        }
+        return mono ? 9 : 17;
+    }
+
+    private static int getSampleRate(int header) {
+        int index = (header >> 10) & 3;
+        if (index == 3) {
+            return 0;
+        }
+        switch ((header >> 19) & 3) {
+            case MPEG1:
+                return SAMPLE_RATES[index];
+            case MPEG2:
+                return SAMPLE_RATES[index] / 2;
+            case MPEG25:
+                return SAMPLE_RATES[index] / 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getSamplesPerFrame(int header) {
+        int layer = 4 - ((header >> 17) & 3);
+        if (layer == 1) {
+            return 384;
+        }
+        if (layer == 3 && ((header >> 19) & 3) != MPEG1) {
+            return 576;
+        }
+        return 1152;
+    }
+
+    private static int fourCC(String id) {
+        // Big endian, like the MPEG headers.
+        return (id.charAt(0) << 24) | (id.charAt(1) << 16) | (id.charAt(2) << 8) | id.charAt(3);
+    }
+}
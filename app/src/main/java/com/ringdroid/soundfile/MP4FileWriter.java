@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Writes an .m4a file (see MP4Header) frame by frame, as the AAC frames are produced.
+// The space needed by the header is reserved at the beginning of the file for the maximum number
+// of frames, the frames are written to the file as they come, and the header (whose sample table
+// needs the size of every frame) is written in the reserved space once all the frames are known.
+// Only the frame sizes are kept in memory, whatever the length of the stream.
+class MP4FileWriter {
+    private int sampleRate;
+    private int channels;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int headerSize;  // size reserved for the header.
+    private long position;  // where the next frame is written.
+    private int[] frameSizes;
+    private int numFrames;
+
+    // Create file, for at most maxNumFrames frames (the first one being the 2 bytes AAC
+    // configuration, as MP4Header expects).
+    public MP4FileWriter(File file, int sampleRate, int channels, int maxNumFrames)
+            throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        frameSizes = new int[Math.max(2, maxNumFrames)];
+        frameSizes[0] = 2;
+        // The header of the largest stream, plus room for the smallest free atom.
+        headerSize = MP4Header.getMaxHeaderSize(frameSizes.length) + 8;
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        channel = this.file.getChannel();
+        position = headerSize;
+    }
+
+    // Number of frames written so far.
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    // Number of bytes of frames written so far.
+    public long getDataSize() {
+        return position - headerSize;
+    }
+
+    // Append the bytes of frame between its position and its limit (the position is moved to the
+    // limit). Returns false, without writing anything, if the file already contains the maximum
+    // number of frames.
+    public boolean writeFrame(ByteBuffer frame) throws IOException {
+        if (numFrames == frameSizes.length) {
+            return false;
+        }
+        int size = frame.remaining();
+        while (frame.hasRemaining()) {
+            position += channel.write(frame, position);
+        }
+        frameSizes[numFrames++] = size;
+        return true;
+    }
+
+    // Write the header, for a stream encoded at bitrate (in bits per second), and close the file.
+    public void close(int bitrate) throws IOException {
+        try {
+            byte[] header = MP4Header.getMP4Header(sampleRate, channels,
+                    Arrays.copyOf(frameSizes, numFrames), bitrate, headerSize);
+            if (header == null) {
+                throw new IOException("Invalid AAC stream (" + numFrames + " frames)");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    // Close the file without writing the header (e.g. after an error).
+    public void abort() {
+        IOUtils.closeQuietly(file);
+    }
+}
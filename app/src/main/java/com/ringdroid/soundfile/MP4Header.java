@@ -16,209 +16,50 @@
 
 package com.ringdroid.soundfile;
 
-import android.util.Log;
-
-class Atom {  // note: latest versions of spec simply call it 'box' instead of 'atom'.
-    private int size;  // includes atom header (8 bytes)
-    private int type;
-    private byte[] data;  // an atom can either contain data or children, but not both.
-    private Atom[] children;
-    private byte version;  // if negative, then the atom does not contain version and flags data.
-    private int flags;
-
-    // create an empty atom of the given type.
-    public Atom(String type) {
-        size = 8;
-        this.type = getTypeInt(type);
-        data = null;
-        children = null;
-        version = -1;
-        flags = 0;
-    }
-
-    // create an empty atom of type type, with a given version and flags.
-    public Atom(String type, byte version, int flags) {
-        size = 12;
-        this.type = getTypeInt(type);
-        data = null;
-        children = null;
-        this.version = version;
-        this.flags = flags;
-    }
-
-    // set the size field of the atom based on its content.
-    private void setSize() {
-        int size = 8;  // type + size
-        if (version >= 0) {
-            size += 4; // version + flags
-        }
-        if (data != null) {
-            size += data.length;
-        } else if (children != null) {
-            for (Atom child : children) {
-                size += child.getSize();
-            }
-        }
-        this.size = size;
-    }
-
-    // get the size of the this atom.
-    public int getSize() {
-        return size;
-    }
-
-    private int getTypeInt(String type_str) {
-        int type = 0;
-        type |= (byte)(type_str.charAt(0)) << 24;
-        type |= (byte)(type_str.charAt(1)) << 16;
-        type |= (byte)(type_str.charAt(2)) << 8;
-        type |= (byte)(type_str.charAt(3));
-        return type;
-    }
-
-    public int getTypeInt() {
-        return type;
-    }
-
-    public String getTypeStr() {
-        String type = "";
-        type += (char)((byte)((this.type >> 24) & 0xFF));
-        type += (char)((byte)((this.type >> 16) & 0xFF));
-        type += (char)((byte)((this.type >> 8) & 0xFF));
-        type += (char)((byte)(this.type & 0xFF));
-        return type;
-    }
+import java.nio.ByteBuffer;
 
-    public boolean setData(byte[] data) {
-        if (children != null || data == null) {
-            Log.i("Atom", "setData() children are non-null or data is null");
-            return false;
-        }
-
-        this.data = data;
-        setSize();
-
-        return true;
-    }
-
-    public byte[] getData() {
-        return data;
-    }
-
-    public boolean addChild(Atom child) {
-        if (data != null || child == null) {
-            Log.i("Atom", "addChild() data is non-null or child is null");
-            return false;
-        }
-
-        int numChildren = 1;
-
-        if (children != null) {
-            numChildren += children.length;
-        }
-
-        Atom[] children = new Atom[numChildren];
-
-        if (this.children != null) {
-            System.arraycopy(this.children, 0, children, 0, this.children.length);
-        }
-
-        children[numChildren - 1] = child;
-        this.children = children;
-        setSize();
-
-        return true;
-    }
-
-    // return the child atom of the corresponding type.
-    // type can contain grand children: e.g. type = "trak.mdia.minf"
-    // return null if the atom does not contain such a child.
-    public Atom getChild(String type) {
-        if (children == null) {
-            return null;
-        }
-        String[] types = type.split("\\.", 2);
-        for (Atom child : children) {
-            if (child.getTypeStr().equals(types[0])) {
-                if (types.length == 1) {
-                    return child;
-                } else {
-                    return child.getChild(types[1]);
-                }
-            }
-        }
-        return null;
-    }
-
-    // return a byte array containing the full content of the atom (including header)
-    public byte[] getBytes() {
-        byte[] atom_bytes = new byte[size];
-        int offset = 0;
-
-        atom_bytes[offset++] = (byte)((size >> 24) & 0xFF);
-        atom_bytes[offset++] = (byte)((size >> 16) & 0xFF);
-        atom_bytes[offset++] = (byte)((size >> 8) & 0xFF);
-        atom_bytes[offset++] = (byte)(size & 0xFF);
-        atom_bytes[offset++] = (byte)((type >> 24) & 0xFF);
-        atom_bytes[offset++] = (byte)((type >> 16) & 0xFF);
-        atom_bytes[offset++] = (byte)((type >> 8) & 0xFF);
-        atom_bytes[offset++] = (byte)(type & 0xFF);
-        if (version >= 0) {
-            atom_bytes[offset++] = version;
-            atom_bytes[offset++] = (byte)((flags >> 16) & 0xFF);
-            atom_bytes[offset++] = (byte)((flags >> 8) & 0xFF);
-            atom_bytes[offset++] = (byte)(flags & 0xFF);
-        }
-        if (data != null) {
-            System.arraycopy(data, 0, atom_bytes, offset, data.length);
-        } else if (children != null) {
-            byte[] child_bytes;
-            for (Atom child : children) {
-                child_bytes = child.getBytes();
-                System.arraycopy(child_bytes, 0, atom_bytes, offset, child_bytes.length);
-                offset += child_bytes.length;
-            }
-        }
-        return atom_bytes;
-    }
-
-    // Used for debugging purpose only.
-    @Override
-    public String toString() {
-        String str = "";
-        byte[] atom_bytes = getBytes();
-
-        for (int i = 0; i < atom_bytes.length; i++) {
-            if(i % 8 == 0 && i > 0) {
-                str += '\n';
-            }
-            str += String.format("0x%02X", atom_bytes[i]);
-            if (i < atom_bytes.length - 1) {
-                str += ',';
-                if (i % 8 < 7) {
-                    str += ' ';
-                }
-            }
-        }
-        str += '\n';
-        return str;
-    }
-}
+import android.util.Log;
 
+// Header of an .m4a file containing a single AAC stream, which must follow it immediately.
+// The sizes of all the atoms (note: latest versions of spec simply call them 'boxes') are known
+// from the number of frames, so the header is written in a single pass into a buffer of the
+// exact size, without building a tree of atoms.
+// The frames are stored contiguously in the mdat atom, and described as chunks of
+// FRAMES_PER_CHUNK frames. Chunk offsets are written in a co64 atom (instead of stco) when they
+// do not fit in 32 bits, and the mdat atom gets a 64 bits size when needed.
 public class MP4Header {
+    // Number of frames per chunk (~3 sec at 44.1kHz).
+    static final int FRAMES_PER_CHUNK = 128;
+    // Size of the atoms whose size does not depend on the number of frames: ftyp, moov, mvhd,
+    // trak, tkhd, mdia, mdhd, hdlr, minf, smhd, dinf (and its dref), stbl, stsd (and its mp4a),
+    // stts, and the headers of stsc, stsz and stco.
+    private static final int FIXED_SIZE = 571;
+    private static final int ES_DESCRIPTOR_SIZE = 27;
+
     private int[] frameSize;    // size of each AAC frames, in bytes. First one should be 2.
     private int maxFrameSize;   // size of the biggest frame.
-    private int totalSize;        // size of the AAC stream.
+    private long totalSize;     // size of the AAC stream.
     private int bitrate;        // bitrate used to encode the AAC stream.
-    private byte[] time;        // time used for 'creation time' and 'modification time' fields.
-    private byte[] duration;  // duration of stream in milliseconds.
-    private byte[] numSamples;  // number of samples in the stream.
+    private int time;           // time used for 'creation time' and 'modification time' fields.
+    private int duration;       // duration of stream in milliseconds.
+    private int numSamples;     // number of samples in the stream.
     private byte[] header;      // the complete header.
     private int sampleRate;     // sampling frequency in Hz (e.g. 44100).
     private int channels;       // number of channels.
+    private int headerSize;     // if > 0, the header is padded to this size with a free atom.
 
     // Creates a new MP4Header object that should be used to generate an .m4a file header.
     public MP4Header(int sampleRate, int numChannels, int[] frameSize, int bitrate) {
+        this(sampleRate, numChannels, frameSize, bitrate, 0);
+    }
+
+    // Same as above, but the header is exactly headerSize bytes long: a free atom is inserted
+    // before the mdat atom to fill the space left. Used when the space for the header has been
+    // reserved before the number of frames was known (see getMaxHeaderSize()). Pass 0 for the
+    // smallest header.
+    public MP4Header(int sampleRate, int numChannels, int[] frameSize, int bitrate,
+            int headerSize) {
+        this.headerSize = headerSize;
         if (frameSize == null || frameSize.length < 2 || frameSize[0] != 2) {
             Log.e("MP4Header", "constructor invalid frameSize");
             return;
@@ -238,28 +79,13 @@ public class MP4Header {
         }
         long time = System.currentTimeMillis() / 1000;
         time += (66 * 365 + 16) * 24 * 60 * 60;  // number of seconds between 1904 and 1970
-        this.time = new byte[4];
-        this.time[0] = (byte)((time >> 24) & 0xFF);
-        this.time[1] = (byte)((time >> 16) & 0xFF);
-        this.time[2] = (byte)((time >> 8) & 0xFF);
-        this.time[3] = (byte)(time & 0xFF);
-        int numSamples = 1024 * (frameSize.length - 1);  // 1st frame does not contain samples.
-        int durationMS = (numSamples * 1000) / this.sampleRate;
-        if ((numSamples * 1000) % this.sampleRate > 0) {  // round the duration up.
-            durationMS++;
-        }
-        this.numSamples = new byte[] {
-                (byte)((numSamples >> 26) & 0XFF),
-                (byte)((numSamples >> 16) & 0XFF),
-                (byte)((numSamples >> 8) & 0XFF),
-                (byte)(numSamples & 0XFF)
-        };
-        this.duration = new byte[] {
-                (byte)((durationMS >> 26) & 0XFF),
-                (byte)((durationMS >> 16) & 0XFF),
-                (byte)((durationMS >> 8) & 0XFF),
-                (byte)(durationMS & 0XFF)
-        };
+        this.time = (int)time;  // unsigned 32 bits.
+        // 1st frame does not contain samples. The durations are clamped to 32 bits (i.e. ~27
+        // hours at 44.1kHz).
+        long numSamples = 1024L * (frameSize.length - 1);
+        long durationMS = (numSamples * 1000 + this.sampleRate - 1) / this.sampleRate;  // round up
+        this.numSamples = (int)Math.min(numSamples, 0xFFFFFFFFL);
+        this.duration = (int)Math.min(durationMS, 0xFFFFFFFFL);
         setHeader();
     }
 
@@ -272,6 +98,17 @@ public class MP4Header {
         return new MP4Header(sampleRate, numChannels, frame_size, bitrate).header;
     }
 
+    public static byte[] getMP4Header(
+            int sampleRate, int numChannels, int[] frame_size, int bitrate, int headerSize) {
+        return new MP4Header(sampleRate, numChannels, frame_size, bitrate, headerSize).header;
+    }
+
+    // Size of the largest header of a stream of at most numFrames frames (first one included),
+    // whatever the size of the frames: 64 bits chunk offsets and mdat size.
+    public static int getMaxHeaderSize(int numFrames) {
+        return getHeaderSize(numFrames, true, true);
+    }
+
     public String toString() {
         String str = "";
         if (header == null) {
@@ -295,282 +132,252 @@ public class MP4Header {
         return str;
     }
 
-    private void setHeader() {
-        // create the atoms needed to build the header.
-        Atom a_ftyp = getFTYPAtom();
-        Atom a_moov = getMOOVAtom();
-        Atom a_mdat = new Atom("mdat");  // create an empty atom. The AAC stream data should follow
-                                         // immediately after. The correct size will be set later.
-
-        // set the correct chunk offset in the stco atom.
-        Atom a_stco = a_moov.getChild("trak.mdia.minf.stbl.stco");
-        if (a_stco == null) {
-            header = null;
-            return;
-        }
-        byte[] data = a_stco.getData();
-        int chunk_offset = a_ftyp.getSize() + a_moov.getSize() + a_mdat.getSize();
-        int offset = data.length - 4;  // here stco should contain only one chunk offset.
-        data[offset++] = (byte)((chunk_offset >> 24) & 0xFF);
-        data[offset++] = (byte)((chunk_offset >> 16) & 0xFF);
-        data[offset++] = (byte)((chunk_offset >> 8) & 0xFF);
-        data[offset++] = (byte)(chunk_offset & 0xFF);
-
-        // create the header byte array based on the previous atoms.
-        byte[] header = new byte[chunk_offset];  // here chunk_offset is also the size of the header
-        offset = 0;
-        for (Atom atom : new Atom[] {a_ftyp, a_moov, a_mdat}) {
-            byte[] atom_bytes = atom.getBytes();
-            System.arraycopy(atom_bytes, 0, header, offset, atom_bytes.length);
-            offset += atom_bytes.length;
-        }
-
-        //set the correct size of the mdat atom
-        int size = 8 + totalSize;
-        offset -= 8;
-        header[offset++] = (byte)((size >> 24) & 0xFF);
-        header[offset++] = (byte)((size >> 16) & 0xFF);
-        header[offset++] = (byte)((size >> 8) & 0xFF);
-        header[offset++] = (byte)(size & 0xFF);
-
-        this.header = header;
+    // Size of the header (without free atom) of numFrames frames.
+    private static int getHeaderSize(int numFrames, boolean co64, boolean largeMdat) {
+        int numChunks = getNumChunks(numFrames);
+        return FIXED_SIZE +
+                12 * getNumChunkRuns(numFrames) +  // stsc entries.
+                4 * numFrames +  // stsz entries.
+                (co64 ? 8 : 4) * numChunks +  // stco or co64 entries.
+                (largeMdat ? 16 : 8);  // mdat header.
     }
 
-    private Atom getFTYPAtom() {
-        Atom atom = new Atom("ftyp");
-        atom.setData(new byte[] {
-                'M', '4', 'A', ' ',  // Major brand
-                0, 0, 0, 0,          // Minor version
-                'M', '4', 'A', ' ',  // compatible brands
-                'm', 'p', '4', '2',
-                'i', 's', 'o', 'm'
-        });
-        return atom;
+    private static int getNumChunks(int numFrames) {
+        return (numFrames + FRAMES_PER_CHUNK - 1) / FRAMES_PER_CHUNK;
     }
 
-    private Atom getMOOVAtom() {
-        Atom atom = new Atom("moov");
-        atom.addChild(getMVHDAtom());
-        atom.addChild(getTRAKAtom());
-        return atom;
+    // Number of stsc entries: all the chunks are full, except possibly the last one.
+    private static int getNumChunkRuns(int numFrames) {
+        return (numFrames > FRAMES_PER_CHUNK && numFrames % FRAMES_PER_CHUNK != 0) ? 2 : 1;
     }
 
-    private Atom getMVHDAtom() {
-        Atom atom = new Atom("mvhd", (byte)0, 0);
-        atom.setData(new byte[] {
-                time[0], time[1], time[2], time[3],  // creation time.
-                time[0], time[1], time[2], time[3],  // modification time.
-                0, 0, 0x03, (byte)0xE8,  // timescale = 1000 => duration expressed in ms.
-                duration[0], duration[1], duration[2], duration[3],  // duration in ms.
-                0, 1, 0, 0,  // rate = 1.0
-                1, 0,        // volume = 1.0
-                0, 0,        // reserved
-                0, 0, 0, 0,  // reserved
-                0, 0, 0, 0,  // reserved
-                0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,  // unity matrix
-                0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0,
-                0, 0, 0, 0, 0, 0, 0, 0, 0x40, 0, 0, 0,
-                0, 0, 0, 0,  // pre-defined
-                0, 0, 0, 0,  // pre-defined
-                0, 0, 0, 0,  // pre-defined
-                0, 0, 0, 0,  // pre-defined
-                0, 0, 0, 0,  // pre-defined
-                0, 0, 0, 0,  // pre-defined
-                0, 0, 0, 2   // next track ID
-        });
-        return atom;
-    }
-
-    private Atom getTRAKAtom() {
-        Atom atom = new Atom("trak");
-        atom.addChild(getTKHDAtom());
-        atom.addChild(getMDIAAtom());
-        return atom;
-    }
+    private void setHeader() {
+        int numFrames = frameSize.length;
+        boolean largeMdat = 8 + totalSize > 0xFFFFFFFFL;
+        // The chunks follow the header, whose size depends on the chunk offsets size.
+        int size = getHeaderSize(numFrames, false, largeMdat);
+        if (headerSize > 0) {
+            size = headerSize;
+        }
+        boolean co64 = size + totalSize > 0xFFFFFFFFL;  // the last chunk may start there.
+        if (co64 && headerSize == 0) {
+            size = getHeaderSize(numFrames, true, largeMdat);
+        }
+        int freeSize = size - getHeaderSize(numFrames, co64, largeMdat);
+        if (freeSize != 0 && freeSize < 8) {
+            Log.e("MP4Header", "setHeader() headerSize too small");
+            header = null;
+            return;
+        }
 
-    private Atom getTKHDAtom() {
-        Atom atom = new Atom("tkhd", (byte)0, 0x07);  // track enabled, in movie, and in preview.
-        atom.setData(new byte[] {
-                time[0], time[1], time[2], time[3],  // creation time.
-                time[0], time[1], time[2], time[3],  // modification time.
-                0, 0, 0, 1,  // track ID
-                0, 0, 0, 0,  // reserved
-                duration[0], duration[1], duration[2], duration[3],  // duration in ms.
-                0, 0, 0, 0,  // reserved
-                0, 0, 0, 0,  // reserved
-                0, 0,        // layer
-                0, 0,        // alternate group
-                1, 0,        // volume = 1.0
-                0, 0,        // reserved
-                0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,  // unity matrix
-                0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0,
-                0, 0, 0, 0, 0, 0, 0, 0, 0x40, 0, 0, 0,
-                0, 0, 0, 0,  // width
-                0, 0, 0, 0   // height
-        });
-        return atom;
+        ByteBuffer buffer = ByteBuffer.allocate(size);  // big endian, zero filled.
+        setFTYPAtom(buffer);
+        int moov = startAtom(buffer, "moov");
+        setMVHDAtom(buffer);
+        int trak = startAtom(buffer, "trak");
+        setTKHDAtom(buffer);
+        int mdia = startAtom(buffer, "mdia");
+        setMDHDAtom(buffer);
+        setHDLRAtom(buffer);
+        int minf = startAtom(buffer, "minf");
+        setSMHDAtom(buffer);
+        setDINFAtom(buffer);
+        int stbl = startAtom(buffer, "stbl");
+        setSTSDAtom(buffer);
+        setSTTSAtom(buffer);
+        setSTSCAtom(buffer);
+        setSTSZAtom(buffer);
+        setSTCOAtom(buffer, co64, size);
+        endAtom(buffer, stbl);
+        endAtom(buffer, minf);
+        endAtom(buffer, mdia);
+        endAtom(buffer, trak);
+        endAtom(buffer, moov);
+        if (freeSize > 0) {
+            // A free atom containing only 0s.
+            buffer.putInt(freeSize);
+            putType(buffer, "free");
+            buffer.position(buffer.position() + freeSize - 8);
+        }
+        // The mdat atom. The AAC stream data should follow immediately after.
+        if (largeMdat) {
+            buffer.putInt(1);
+            putType(buffer, "mdat");
+            buffer.putLong(16 + totalSize);
+        } else {
+            buffer.putInt((int)(8 + totalSize));
+            putType(buffer, "mdat");
+        }
+        if (buffer.position() != size) {  // Should not happen.
+            Log.e("MP4Header", "setHeader() wrote " + buffer.position() + " bytes instead of " +
+                    size);
+            header = null;
+            return;
+        }
+        header = buffer.array();
     }
 
-    private Atom getMDIAAtom() {
-        Atom atom = new Atom("mdia");
-        atom.addChild(getMDHDAtom());
-        atom.addChild(getHDLRAtom());
-        atom.addChild(getMINFAtom());
-        return atom;
+    // Write the header of an atom of the given type, whose size is set by endAtom().
+    // Return the position of the atom.
+    private static int startAtom(ByteBuffer buffer, String type) {
+        int position = buffer.position();
+        buffer.putInt(0);
+        putType(buffer, type);
+        return position;
     }
 
-    private Atom getMDHDAtom() {
-        Atom atom = new Atom("mdhd", (byte)0, 0);
-        atom.setData(new byte[] {
-                time[0], time[1], time[2], time[3],  // creation time.
-                time[0], time[1], time[2], time[3],  // modification time.
-                (byte)(sampleRate >> 24), (byte)(sampleRate >> 16),  // timescale = Fs =>
-                (byte)(sampleRate >> 8), (byte)(sampleRate),  // duration expressed in samples.
-                numSamples[0], numSamples[1], numSamples[2], numSamples[3],  // duration
-                0, 0,     // languages
-                0, 0      // pre-defined
-        });
-        return atom;
+    // Same as above, for an atom with a given version and flags.
+    private static int startAtom(ByteBuffer buffer, String type, int version, int flags) {
+        int position = startAtom(buffer, type);
+        buffer.putInt((version << 24) | flags);
+        return position;
     }
 
-    private Atom getHDLRAtom() {
-        Atom atom = new Atom("hdlr", (byte)0, 0);
-        atom.setData(new byte[] {
-                0, 0, 0, 0,  // pre-defined
-                's', 'o', 'u', 'n',  // handler type
-                0, 0, 0, 0,  // reserved
-                0, 0, 0, 0,  // reserved
-                0, 0, 0, 0,  // reserved
-                'S', 'o', 'u', 'n',  // name (used only for debugging and inspection purposes).
-                'd', 'H', 'a', 'n',
-                'd', 'l', 'e', '\0'
-        });
-        return atom;
+    // Set the size of the atom started at position, which ends at the buffer position.
+    private static void endAtom(ByteBuffer buffer, int position) {
+        buffer.putInt(position, buffer.position() - position);
     }
 
-    private Atom getMINFAtom() {
-        Atom atom = new Atom("minf");
-        atom.addChild(getSMHDAtom());
-        atom.addChild(getDINFAtom());
-        atom.addChild(getSTBLAtom());
-        return atom;
+    private static void putType(ByteBuffer buffer, String type) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte)type.charAt(i));
+        }
     }
 
-    private Atom getSMHDAtom() {
-        Atom atom = new Atom("smhd", (byte)0, 0);
-        atom.setData(new byte[] {
-                0, 0,     // balance (center)
-                0, 0      // reserved
+    private void setFTYPAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "ftyp");
+        buffer.put(new byte[] {
+                'M', '4', 'A', ' ',  // Major brand
+                0, 0, 0, 0,          // Minor version
+                'M', '4', 'A', ' ',  // compatible brands
+                'm', 'p', '4', '2',
+                'i', 's', 'o', 'm'
         });
-        return atom;
-    }
-
-    private Atom getDINFAtom() {
-        Atom atom = new Atom("dinf");
-        atom.addChild(getDREFAtom());
-        return atom;
-    }
-
-    private Atom getDREFAtom() {
-        Atom atom = new Atom("dref", (byte)0, 0);
-        byte[] url = getURLAtom().getBytes();
-        byte[] data = new byte[4 + url.length];
-        data[3] = 0x01;  // entry count = 1
-        System.arraycopy(url, 0, data, 4, url.length);
-        atom.setData(data);
-        return atom;
-    }
-
-    private Atom getURLAtom() {
-        Atom atom = new Atom("url ", (byte)0, 0x01);  // flags = 0x01: data is self contained.
-        return atom;
-    }
-
-    private Atom getSTBLAtom() {
-        Atom atom = new Atom("stbl");
-        atom.addChild(getSTSDAtom());
-        atom.addChild(getSTTSAtom());
-        atom.addChild(getSTSCAtom());
-        atom.addChild(getSTSZAtom());
-        atom.addChild(getSTCOAtom());
-        return atom;
-    }
-
-    private Atom getSTSDAtom() {
-        Atom atom = new Atom("stsd", (byte)0, 0);
-        byte[] mp4a = getMP4AAtom().getBytes();
-        byte[] data = new byte[4 + mp4a.length];
-        data[3] = 0x01;  // entry count = 1
-        System.arraycopy(mp4a, 0, data, 4, mp4a.length);
-        atom.setData(data);
-        return atom;
+        endAtom(buffer, atom);
+    }
+
+    private void setMVHDAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "mvhd", 0, 0);
+        buffer.putInt(time);  // creation time.
+        buffer.putInt(time);  // modification time.
+        buffer.putInt(1000);  // timescale = 1000 => duration expressed in ms.
+        buffer.putInt(duration);  // duration in ms.
+        buffer.putInt(0x00010000);  // rate = 1.0
+        buffer.putShort((short)0x0100);  // volume = 1.0
+        buffer.position(buffer.position() + 10);  // reserved
+        putUnityMatrix(buffer);
+        buffer.position(buffer.position() + 24);  // pre-defined
+        buffer.putInt(2);  // next track ID
+        endAtom(buffer, atom);
+    }
+
+    private void setTKHDAtom(ByteBuffer buffer) {
+        // track enabled, in movie, and in preview.
+        int atom = startAtom(buffer, "tkhd", 0, 0x07);
+        buffer.putInt(time);  // creation time.
+        buffer.putInt(time);  // modification time.
+        buffer.putInt(1);  // track ID
+        buffer.putInt(0);  // reserved
+        buffer.putInt(duration);  // duration in ms.
+        buffer.position(buffer.position() + 8);  // reserved
+        buffer.putShort((short)0);  // layer
+        buffer.putShort((short)0);  // alternate group
+        buffer.putShort((short)0x0100);  // volume = 1.0
+        buffer.putShort((short)0);  // reserved
+        putUnityMatrix(buffer);
+        buffer.putInt(0);  // width
+        buffer.putInt(0);  // height
+        endAtom(buffer, atom);
+    }
+
+    private static void putUnityMatrix(ByteBuffer buffer) {
+        buffer.putInt(0x00010000);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0x00010000);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0x40000000);
+    }
+
+    private void setMDHDAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "mdhd", 0, 0);
+        buffer.putInt(time);  // creation time.
+        buffer.putInt(time);  // modification time.
+        buffer.putInt(sampleRate);  // timescale = Fs => duration expressed in samples.
+        buffer.putInt(numSamples);  // duration
+        buffer.putShort((short)0);  // languages
+        buffer.putShort((short)0);  // pre-defined
+        endAtom(buffer, atom);
+    }
+
+    private void setHDLRAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "hdlr", 0, 0);
+        buffer.putInt(0);  // pre-defined
+        putType(buffer, "soun");  // handler type
+        buffer.position(buffer.position() + 12);  // reserved
+        // name (used only for debugging and inspection purposes).
+        buffer.put(new byte[] {'S', 'o', 'u', 'n', 'd', 'H', 'a', 'n', 'd', 'l', 'e', '\0'});
+        endAtom(buffer, atom);
+    }
+
+    private void setSMHDAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "smhd", 0, 0);
+        buffer.putShort((short)0);  // balance (center)
+        buffer.putShort((short)0);  // reserved
+        endAtom(buffer, atom);
+    }
+
+    private void setDINFAtom(ByteBuffer buffer) {
+        int dinf = startAtom(buffer, "dinf");
+        int dref = startAtom(buffer, "dref", 0, 0);
+        buffer.putInt(1);  // entry count = 1
+        // flags = 0x01: data is self contained.
+        endAtom(buffer, startAtom(buffer, "url ", 0, 0x01));
+        endAtom(buffer, dref);
+        endAtom(buffer, dinf);
+    }
+
+    private void setSTSDAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "stsd", 0, 0);
+        buffer.putInt(1);  // entry count = 1
+        setMP4AAtom(buffer);
+        endAtom(buffer, atom);
     }
 
     // See also Part 14 section 5.6.1 of ISO/IEC 14496 for this atom.
-    private Atom getMP4AAtom() {
-        Atom atom = new Atom("mp4a");
-        byte[] ase = new byte[] {  // Audio Sample Entry data
-                0, 0, 0, 0, 0, 0,  // reserved
-                0, 1,  // data reference index
-                0, 0, 0, 0,  // reserved
-                0, 0, 0, 0,  // reserved
-                (byte)(channels >> 8), (byte) channels,  // channel count
-                0, 0x10, // sample size
-                0, 0,  // pre-defined
-                0, 0,  // reserved
-                (byte)(sampleRate >> 8), (byte)(sampleRate), 0, 0,  // sample rate
-        };
-        byte[] esds = getESDSAtom().getBytes();
-        byte[] data = new byte[ase.length + esds.length];
-        System.arraycopy(ase, 0, data, 0, ase.length);
-        System.arraycopy(esds, 0, data, ase.length, esds.length);
-        atom.setData(data);
-        return atom;
-    }
-
-    private Atom getESDSAtom() {
-        Atom atom = new Atom("esds", (byte)0, 0);
-        atom.setData(getESDescriptor());
-        return atom;
-    }
-
-    // Returns an ES Descriptor for an ISO/IEC 14496-3 audio stream, AAC LC, 44100Hz, 2 channels,
-    // 1024 samples per frame per channel. The decoder buffer size is set so that it can contain at
-    // least 2 frames. (See section 7.2.6.5 of ISO/IEC 14496-1 for more details).
-    private byte[] getESDescriptor() {
+    private void setMP4AAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "mp4a");
+        // Audio Sample Entry data
+        buffer.position(buffer.position() + 6);  // reserved
+        buffer.putShort((short)1);  // data reference index
+        buffer.position(buffer.position() + 8);  // reserved
+        buffer.putShort((short)channels);  // channel count
+        buffer.putShort((short)0x10);  // sample size
+        buffer.putShort((short)0);  // pre-defined
+        buffer.putShort((short)0);  // reserved
+        buffer.putShort((short)sampleRate);  // sample rate
+        buffer.putShort((short)0);
+        int esds = startAtom(buffer, "esds", 0, 0);
+        setESDescriptor(buffer);
+        endAtom(buffer, esds);
+        endAtom(buffer, atom);
+    }
+
+    // Writes an ES Descriptor for an ISO/IEC 14496-3 audio stream, AAC LC, 1024 samples per frame
+    // per channel. The decoder buffer size is set so that it can contain at least 2 frames. (See
+    // section 7.2.6.5 of ISO/IEC 14496-1 for more details).
+    private void setESDescriptor(ByteBuffer buffer) {
         int[] samplingFrequencies = new int[] {96000, 88200, 64000, 48000, 44100, 32000, 24000,
                 22050, 16000, 12000, 11025, 8000, 7350};
-        // First 5 bytes of the ES Descriptor.
-        byte[] ESDescriptor_top = new byte[] {0x03, 0x19, 0x00, 0x00, 0x00};
-        // First 4 bytes of Decoder Configuration Descriptor. Audio ISO/IEC 14496-3, AudioStream.
-        byte[] decConfigDescr_top = new byte[] {0x04, 0x11, 0x40, 0x15};
-        // Audio Specific Configuration: AAC LC, 1024 samples/frame/channel.
-        // Sampling frequency and channels configuration are not set yet.
-        byte[] audioSpecificConfig = new byte[] {0x05, 0x02, 0x10, 0x00};
-        byte[] slConfigDescr = new byte[] {0x06, 0x01, 0x02};  // specific for MP4 file.
-        int offset;
         int bufferSize = 0x300;
         while (bufferSize < 2 * maxFrameSize) {
             // TODO(nfaralli): what should be the minimum size of the decoder buffer?
             // Should it be a multiple of 256?
             bufferSize += 0x100;
         }
-
-        // create the Decoder Configuration Descriptor
-        byte[] decConfigDescr = new byte[2 + decConfigDescr_top[1]];
-        System.arraycopy(decConfigDescr_top, 0, decConfigDescr, 0, decConfigDescr_top.length);
-        offset = decConfigDescr_top.length;
-        decConfigDescr[offset++] = (byte)((bufferSize >> 16) & 0xFF);
-        decConfigDescr[offset++] = (byte)((bufferSize >> 8) & 0xFF);
-        decConfigDescr[offset++] = (byte)(bufferSize & 0xFF);
-        decConfigDescr[offset++] = (byte)((bitrate >> 24) & 0xFF);
-        decConfigDescr[offset++] = (byte)((bitrate >> 16) & 0xFF);
-        decConfigDescr[offset++] = (byte)((bitrate >> 8) & 0xFF);
-        decConfigDescr[offset++] = (byte)(bitrate & 0xFF);
-        decConfigDescr[offset++] = (byte)((bitrate >> 24) & 0xFF);
-        decConfigDescr[offset++] = (byte)((bitrate >> 16) & 0xFF);
-        decConfigDescr[offset++] = (byte)((bitrate >> 8) & 0xFF);
-        decConfigDescr[offset++] = (byte)(bitrate & 0xFF);
         int index;
         for (index=0; index<samplingFrequencies.length; index++) {
             if (samplingFrequencies[index] == sampleRate) {
@@ -578,82 +385,76 @@ public class MP4Header {
             }
         }
         if (index == samplingFrequencies.length) {
-            Log.i("MP4Header", "getESDescriptor() invalid sampling frequency. Defaulting to 44100Hz");
+            Log.i("MP4Header", "setESDescriptor() invalid sampling frequency. Defaulting to 44100Hz");
             index = 4;
         }
-        audioSpecificConfig[2] |= (byte)((index >> 1) & 0x07);
-        audioSpecificConfig[3] |= (byte)(((index & 1) << 7) | ((channels & 0x0F) << 3));
-        System.arraycopy(
-                audioSpecificConfig, 0, decConfigDescr, offset, audioSpecificConfig.length);
-
-        // create the ES Descriptor
-        byte[] ESDescriptor = new byte[2 + ESDescriptor_top[1]];
-        System.arraycopy(ESDescriptor_top, 0, ESDescriptor, 0, ESDescriptor_top.length);
-        offset = ESDescriptor_top.length;
-        System.arraycopy(decConfigDescr, 0, ESDescriptor, offset, decConfigDescr.length);
-        offset += decConfigDescr.length;
-        System.arraycopy(slConfigDescr, 0, ESDescriptor, offset, slConfigDescr.length);
-        return ESDescriptor;
-    }
 
-    private Atom getSTTSAtom() {
-        Atom atom = new Atom("stts", (byte)0, 0);
-        int numAudioFrames = frameSize.length - 1;
-        atom.setData(new byte[] {
-                0, 0, 0, 0x02,  // entry count
-                0, 0, 0, 0x01,  // first frame contains no audio
-                0, 0, 0, 0,
-                (byte)((numAudioFrames >> 24) & 0xFF), (byte)((numAudioFrames >> 16) & 0xFF),
-                (byte)((numAudioFrames >> 8) & 0xFF), (byte)(numAudioFrames & 0xFF),
-                0, 0, 0x04, 0,  // delay between frames = 1024 samples (cf. timescale = Fs)
-        });
-        return atom;
-    }
-
-    private Atom getSTSCAtom() {
-        Atom atom = new Atom("stsc", (byte)0, 0);
+        // ES Descriptor.
+        buffer.put(new byte[] {0x03, ES_DESCRIPTOR_SIZE - 2, 0x00, 0x00, 0x00});
+        // Decoder Configuration Descriptor. Audio ISO/IEC 14496-3, AudioStream.
+        buffer.put(new byte[] {0x04, 0x11, 0x40, 0x15});
+        buffer.put((byte)((bufferSize >> 16) & 0xFF));
+        buffer.putShort((short)bufferSize);
+        buffer.putInt(bitrate);  // max bitrate.
+        buffer.putInt(bitrate);  // average bitrate.
+        // Audio Specific Configuration: AAC LC, 1024 samples/frame/channel, sampling frequency
+        // and channels configuration.
+        buffer.put(new byte[] {0x05, 0x02,
+                (byte)(0x10 | ((index >> 1) & 0x07)),
+                (byte)(((index & 1) << 7) | ((channels & 0x0F) << 3))});
+        buffer.put(new byte[] {0x06, 0x01, 0x02});  // SL Config Descriptor, specific for MP4 file.
+    }
+
+    private void setSTTSAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "stts", 0, 0);
+        buffer.putInt(2);  // entry count
+        buffer.putInt(1);  // first frame contains no audio
+        buffer.putInt(0);
+        buffer.putInt(frameSize.length - 1);
+        buffer.putInt(1024);  // delay between frames = 1024 samples (cf. timescale = Fs)
+        endAtom(buffer, atom);
+    }
+
+    private void setSTSCAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "stsc", 0, 0);
         int numFrames = frameSize.length;
-        atom.setData(new byte[] {
-                0, 0, 0, 0x01,  // entry count
-                0, 0, 0, 0x01,  // first chunk
-                (byte)((numFrames >> 24) & 0xFF), (byte)((numFrames >> 16) & 0xFF),  // samples per
-                (byte)((numFrames >> 8) & 0xFF), (byte)(numFrames & 0xFF),           // chunk
-                0, 0, 0, 0x01,  // sample description index
-        });
-        return atom;
-    }
-
-    private Atom getSTSZAtom() {
-        Atom atom = new Atom("stsz", (byte)0, 0);
-        int numFrames = frameSize.length;
-        byte[] data = new byte[8 + 4 * numFrames];
-        int offset = 0;
-        data[offset++] = 0;  // sample size (=0 => each frame can have a different size)
-        data[offset++] = 0;
-        data[offset++] = 0;
-        data[offset++] = 0;
-        data[offset++] = (byte)((numFrames >> 24) & 0xFF);  // sample count
-        data[offset++] = (byte)((numFrames >> 16) & 0xFF);
-        data[offset++] = (byte)((numFrames >> 8) & 0xFF);
-        data[offset++] = (byte)(numFrames & 0xFF);
-        for (int size : frameSize) {
-            data[offset++] = (byte)((size >> 24) & 0xFF);
-            data[offset++] = (byte)((size >> 16) & 0xFF);
-            data[offset++] = (byte)((size >> 8) & 0xFF);
-            data[offset++] = (byte)(size & 0xFF);
+        int numChunks = getNumChunks(numFrames);
+        buffer.putInt(getNumChunkRuns(numFrames));  // entry count
+        buffer.putInt(1);  // first chunk
+        buffer.putInt(Math.min(numFrames, FRAMES_PER_CHUNK));  // samples per chunk
+        buffer.putInt(1);  // sample description index
+        if (getNumChunkRuns(numFrames) == 2) {  // the last chunk is not full.
+            buffer.putInt(numChunks);
+            buffer.putInt(numFrames - (numChunks - 1) * FRAMES_PER_CHUNK);
+            buffer.putInt(1);
         }
-        atom.setData(data);
-        return atom;
-    }
-
-    private Atom getSTCOAtom() {
-        Atom atom = new Atom("stco", (byte)0, 0);
-        atom.setData(new byte[] {
-                0, 0, 0, 0x01,   // entry count
-                0, 0, 0, 0  // chunk offset. Set to 0 here. Must be set later. Here it should be
-                            // the size of the complete header, as the AAC stream will follow
-                            // immediately.
-        });
-        return atom;
+        endAtom(buffer, atom);
+    }
+
+    private void setSTSZAtom(ByteBuffer buffer) {
+        int atom = startAtom(buffer, "stsz", 0, 0);
+        buffer.putInt(0);  // sample size (=0 => each frame can have a different size)
+        buffer.putInt(frameSize.length);  // sample count
+        buffer.asIntBuffer().put(frameSize);
+        buffer.position(buffer.position() + 4 * frameSize.length);
+        endAtom(buffer, atom);
+    }
+
+    // The chunks are stored one after the other, the first one at dataOffset.
+    private void setSTCOAtom(ByteBuffer buffer, boolean co64, long dataOffset) {
+        int atom = startAtom(buffer, co64 ? "co64" : "stco", 0, 0);
+        buffer.putInt(getNumChunks(frameSize.length));  // entry count
+        long offset = dataOffset;
+        for (int i = 0; i < frameSize.length; i++) {
+            if (i % FRAMES_PER_CHUNK == 0) {
+                if (co64) {
+                    buffer.putLong(offset);
+                } else {
+                    buffer.putInt((int)offset);
+                }
+            }
+            offset += frameSize[i];
+        }
+        endAtom(buffer, atom);
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+// Store for decoded PCM data, backed by a scratch file instead of the Java heap.
+// The samples are appended to the file through a FileChannel, and read back through a memory
+// mapping of the file. The heap cost is fixed whatever the length of the audio, and growing the
+// store never copies the samples already written. The store is not limited to 2GB: it is mapped in
+// several chunks when needed.
+class MappedSampleStore {
+    // Prefix of the scratch files (see PcmCache.deleteScratchFiles()).
+    static final String SCRATCH_PREFIX = "decoded";
+    // Any scratch file created by this process is created after this time.
+    static final long LOAD_TIME_MS = System.currentTimeMillis();
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private volatile long size;  // number of bytes written so far, see setSize().
+
+    // Create a new empty store in a scratch file of the given directory.
+    public MappedSampleStore(File directory) throws IOException {
+        file = File.createTempFile(SCRATCH_PREFIX, ".pcm", directory);
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        size = 0;
+    }
+
+    // Append the remaining bytes of buffer to the store.
+    public void write(ByteBuffer buffer) throws IOException {
+        int numBytes = buffer.remaining();
+        write(buffer, size);
+        size += numBytes;
+    }
+
+    // Write the remaining bytes of buffer at the given position of the store, without changing
+    // size(). Several threads may write distinct parts of the store this way at the same time,
+    // e.g. ranges of a file decoded in parallel; the bytes are then marked as written by
+    // setSize().
+    public void write(ByteBuffer buffer, long position) throws IOException {
+        long end = position + buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, end - buffer.remaining());
+        }
+    }
+
+    // Number of bytes written so far.
+    public long size() {
+        return size;
+    }
+
+    // Mark the first size bytes of the store as written. Bytes never written read as zeros.
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    // Return a read-only view of the first numBytes bytes of the store.
+    // The view stays valid after the store is closed.
+    public ChunkedSampleBuffer map(long numBytes) throws IOException {
+        return map(0, numBytes);
+    }
+
+    // Return a read-only view of the numBytes bytes of the store starting at position.
+    public ChunkedSampleBuffer map(long position, long numBytes) throws IOException {
+        return ChunkedSampleBuffer.map(channel, position, numBytes);
+    }
+
+    // Close the store and move the scratch file to destination, so that the samples are kept.
+    // The scratch file is deleted if it can't be moved.
+    public boolean moveTo(File destination) {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Log.w("MappedSampleStore", "moveTo() failed to close " + file + "\n" + e.toString());
+        }
+        if (!file.renameTo(destination)) {
+            Log.w("MappedSampleStore", "moveTo() failed to move " + file + " to " + destination);
+            file.delete();
+            return false;
+        }
+        return true;
+    }
+
+    // Close the store and delete the scratch file. The space used on disk is reclaimed once all
+    // the views returned by map() have been garbage collected.
+    public void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Log.w("MappedSampleStore", "close() failed to close " + file + "\n" + e.toString());
+        }
+        if (!file.delete()) {
+            Log.w("MappedSampleStore", "close() failed to delete " + file);
+        }
+    }
+}
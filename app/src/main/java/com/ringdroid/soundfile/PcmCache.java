@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.util.Log;
+
+// Disk cache of decoded audio files, so that a file opened again does not need to be decoded.
+// Each entry is made of two files named after a hash of the source file identity (path, size and
+// modification time):
+//  - <hash>.pcm contains the decoded samples (16 bits little endian, channels interleaved).
+//  - <hash>.meta contains the source identity, the stream parameters and the envelope.
+// The .meta file is written last, so an entry without a valid .meta file is ignored.
+// Least recently used entries are deleted when the cache grows over a quarter of the space it
+// may use (its own size plus the free space), and files too large for that are not cached.
+class PcmCache {
+    private static final int VERSION = 4;
+    private static final int MAX_SPACE_FRACTION = 4;  // the cache uses at most 1/4 of the space.
+
+    private static boolean scratchFilesDeleted;
+
+    private File directory;
+
+    // Cached parameters of a decoded file.
+    public static class Entry {
+        public int sampleRate;
+        public int channels;
+        public long numSamples;  // number of samples per channel.
+        public int avgBitRate;  // in kbps.
+        public WaveformEnvelope envelope;
+        public ChunkedSampleBuffer samples;  // read-only. Only set by get().
+    }
+
+    // scratchDirectory is where the MappedSampleStore scratch files are created.
+    public PcmCache(File directory, File scratchDirectory) {
+        this.directory = directory;
+        deleteScratchFiles(scratchDirectory);
+    }
+
+    // Return the cached entry of the source file, or null if the file has not been cached yet (or
+    // has been modified since).
+    public Entry get(File source) {
+        String key = getKey(source);
+        File metaFile = getFile(key, ".meta");
+        File pcmFile = getFile(key, ".pcm");
+        if (!metaFile.exists() || !pcmFile.exists()) {
+            return null;
+        }
+        Entry entry = new Entry();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile)));
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                return null;
+            }
+            entry.sampleRate = in.readInt();
+            entry.channels = in.readInt();
+            entry.numSamples = in.readLong();
+            entry.avgBitRate = in.readInt();
+            int samplesPerBlock = in.readInt();
+            int numBlocks = in.readInt();
+            short[] mins = new short[numBlocks * entry.channels];
+            short[] maxs = new short[mins.length];
+            short[] rms = new short[mins.length];
+            for (int i = 0; i < mins.length; i++) {
+                mins[i] = in.readShort();
+                maxs[i] = in.readShort();
+                rms[i] = in.readShort();
+            }
+            entry.envelope = new WaveformEnvelope(
+                    entry.channels, samplesPerBlock, numBlocks, mins, maxs, rms);
+        } catch (IOException e) {
+            Log.w("PcmCache", "get() invalid cache entry " + metaFile + "\n" + e.toString());
+            delete(key);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        long numBytes = entry.numSamples * entry.channels * 2;
+        RandomAccessFile pcm = null;
+        try {
+            pcm = new RandomAccessFile(pcmFile, "r");
+            if (pcm.length() != numBytes) {
+                delete(key);
+                return null;
+            }
+            entry.samples = ChunkedSampleBuffer.map(pcm.getChannel(), 0, numBytes);
+        } catch (IOException e) {
+            Log.w("PcmCache", "get() failed to map " + pcmFile + "\n" + e.toString());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(pcm);
+        }
+        // Mark the entry as recently used.
+        long now = System.currentTimeMillis();
+        metaFile.setLastModified(now);
+        pcmFile.setLastModified(now);
+        return entry;
+    }
+
+    // Add the samples stored in store to the cache, as the decoded content of source.
+    // The store is closed, and its scratch file becomes part of the cache.
+    public void put(File source, Entry entry, MappedSampleStore store) {
+        String key = getKey(source);
+        File metaFile = getFile(key, ".meta");
+        delete(key);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            store.close();
+            return;
+        }
+        long maxSize = getMaxSize();
+        if (store.size() > maxSize) {
+            // It would evict all the other entries, and then itself.
+            store.close();
+            return;
+        }
+        if (!store.moveTo(getFile(key, ".pcm"))) {
+            return;
+        }
+        File tmpFile = getFile(key, ".meta.tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(entry.sampleRate);
+            out.writeInt(entry.channels);
+            out.writeLong(entry.numSamples);
+            out.writeInt(entry.avgBitRate);
+            WaveformEnvelope envelope = entry.envelope;
+            out.writeInt(envelope.getSamplesPerBlock());
+            out.writeInt(envelope.getNumBlocks());
+            for (int i = 0; i < envelope.getNumBlocks() * envelope.getChannels(); i++) {
+                out.writeShort(envelope.getMins()[i]);
+                out.writeShort(envelope.getMaxs()[i]);
+                out.writeShort(envelope.getRms()[i]);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(metaFile)) {
+                throw new IOException("failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w("PcmCache", "put() failed to write " + metaFile + "\n" + e.toString());
+            IOUtils.closeQuietly(out);
+            tmpFile.delete();
+            delete(key);
+            return;
+        }
+        trim(directory, maxSize, hash(key));
+    }
+
+    // Maximum size of the cache: a fraction of the space it may use.
+    private long getMaxSize() {
+        return (getSize(directory.listFiles()) + directory.getUsableSpace()) / MAX_SPACE_FRACTION;
+    }
+
+    // Delete the scratch files left in directory by a previous process (e.g. killed while
+    // decoding), once per process: the files last modified before this process created its first
+    // store. The margin covers file systems with a coarse modification time.
+    private static synchronized void deleteScratchFiles(File directory) {
+        if (scratchFilesDeleted) {
+            return;
+        }
+        scratchFilesDeleted = true;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(MappedSampleStore.SCRATCH_PREFIX) &&
+                    file.getName().endsWith(".pcm") && file.lastModified() < MappedSampleStore.LOAD_TIME_MS - 2000) {
+                Log.i("PcmCache", "deleteScratchFiles() deleting " + file);
+                file.delete();
+            }
+        }
+    }
+
+    // Delete the least recently used files of directory until it fits in maxSize bytes.
+    static void trim(File directory, long maxSize) {
+        trim(directory, maxSize, null);
+    }
+
+    // Same as above, but the files whose name starts with keep (if not null) are never deleted.
+    static void trim(File directory, long maxSize, String keep) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalSize = getSize(files);
+        if (totalSize <= maxSize) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            if (keep != null && file.getName().startsWith(keep)) {
+                continue;
+            }
+            long size = file.length();
+            if (file.delete()) {
+                totalSize -= size;
+            }
+        }
+    }
+
+    private static long getSize(File[] files) {
+        long size = 0;
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private void delete(String key) {
+        getFile(key, ".meta").delete();  // deleted first so that the entry is invalid.
+        getFile(key, ".pcm").delete();
+    }
+
+    private File getFile(String key, String extension) {
+        return new File(directory, hash(key) + extension);
+    }
+
+    // The identity of a file: its path, size and last modification time.
+    static String getKey(File source) {
+        String path;
+        try {
+            path = source.getCanonicalPath();
+        } catch (IOException e) {
+            path = source.getAbsolutePath();
+        }
+        return path + ":" + source.length() + ":" + source.lastModified();
+    }
+
+    static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
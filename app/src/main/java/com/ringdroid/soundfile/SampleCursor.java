@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+// Sequential reader of the samples of a SoundFile, returned by SoundFile.getSampleCursor().
+// The samples are interleaved: {s1c1, s1c2, ..., s1cM, s2c1, ..., s2cM, ..., sNc1, ..., sNcM}
+// where sicj is the ith sample of the jth channel (a sample is a signed short).
+// A cursor is not thread safe, but several cursors can read the same samples concurrently.
+public class SampleCursor implements SampleReader {
+    private ByteBuffer[] chunks;
+    private int chunkShift;
+    private long size;  // number of bytes that can be read.
+    private int channels;
+    private long position;  // byte offset of the next sample to read.
+
+    // Views of the chunk containing position.
+    private int chunkIndex;
+    private ByteBuffer chunkBytes;
+    private ShortBuffer chunkShorts;
+
+    SampleCursor(ByteBuffer[] chunks, int chunkShift, long size, int channels) {
+        this.chunks = chunks;
+        this.chunkShift = chunkShift;
+        this.size = size - size % (2 * channels);
+        this.channels = channels;
+        position = 0;
+        chunkIndex = -1;
+    }
+
+    // Return a new cursor over the same samples, positioned on the first sample.
+    public SampleCursor duplicate() {
+        return new SampleCursor(chunks, chunkShift, size, channels);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    // Number of samples per channel.
+    public long getNumSamples() {
+        return size / (2 * channels);
+    }
+
+    // Index of the next sample (per channel) to read.
+    public long getPosition() {
+        return position / (2 * channels);
+    }
+
+    // Move the cursor to the given sample (per channel). Positions after the last sample are
+    // clamped to the end of the samples.
+    public void seek(long sample) {
+        position = Math.max(0, Math.min(sample * channels * 2, size));
+    }
+
+    // Read up to length values (a value being one sample of one channel) into dst, starting at
+    // offset. Return the number of values read, which is less than length only at the end of the
+    // samples.
+    public int read(short[] dst, int offset, int length) {
+        length = (int)Math.min(length, (size - position) / 2);
+        int read = 0;
+        while (read < length) {
+            loadChunk();
+            int chunkOffset = (int)(position & ((1L << chunkShift) - 1)) / 2;
+            int count = Math.min(length - read, chunkShorts.capacity() - chunkOffset);
+            chunkShorts.position(chunkOffset);
+            chunkShorts.get(dst, offset + read, count);
+            read += count;
+            position += 2 * count;
+        }
+        return read;
+    }
+
+    // Read up to length bytes of samples (16 bits, little endian) into dst, starting at offset.
+    // Return the number of bytes read, which is less than length only at the end of the samples.
+    public int read(byte[] dst, int offset, int length) {
+        length = (int)Math.min(length, size - position);
+        int read = 0;
+        while (read < length) {
+            loadChunk();
+            int chunkOffset = (int)(position & ((1L << chunkShift) - 1));
+            int count = Math.min(length - read, chunkBytes.capacity() - chunkOffset);
+            chunkBytes.position(chunkOffset);
+            chunkBytes.get(dst, offset + read, count);
+            read += count;
+            position += count;
+        }
+        return read;
+    }
+
+    // Return a view of the next bytes of samples (at most maxLength bytes, but possibly less as the
+    // view never spans two chunks), and move the cursor after them. Return null at the end of the
+    // samples. The samples are not copied: the view shares its content with the sound file.
+    ByteBuffer nextBuffer(int maxLength) {
+        int length = (int)Math.min(maxLength, size - position);
+        if (length <= 0) {
+            return null;
+        }
+        loadChunk();
+        int chunkOffset = (int)(position & ((1L << chunkShift) - 1));
+        length = Math.min(length, chunkBytes.capacity() - chunkOffset);
+        ByteBuffer view = chunkBytes.duplicate();
+        view.order(ByteOrder.LITTLE_ENDIAN);
+        view.limit(chunkOffset + length);
+        view.position(chunkOffset);
+        position += length;
+        return view;
+    }
+
+    // Make chunkBytes and chunkShorts views of the chunk containing position.
+    // The views are private to the cursor, so that the chunks themselves are never modified.
+    private void loadChunk() {
+        int index = (int)(position >> chunkShift);
+        if (index == chunkIndex) {
+            return;
+        }
+        chunkBytes = chunks[index].duplicate();
+        chunkBytes.order(ByteOrder.LITTLE_ENDIAN);
+        chunkBytes.clear();
+        chunkShorts = chunkBytes.asShortBuffer();
+        chunkIndex = index;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+// Source of interleaved 16 bits samples read sequentially, e.g. a SampleCursor, or the samples
+// passed to the sinks of a FanOutExporter.
+interface SampleReader {
+    int getChannels();
+
+    // Read up to length values (a value being one sample of one channel) into dst, starting at
+    // offset. Return the number of values read, which is less than length only at the end of the
+    // samples.
+    int read(short[] dst, int offset, int length);
+}
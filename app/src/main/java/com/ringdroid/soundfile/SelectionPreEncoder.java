@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+// Encodes a selection of a SoundFile to AAC in the background, before it is saved, so that saving
+// it usually only has to move a finished file (see moveTo()).
+// One selection is encoded at a time, on a low priority thread; starting another selection
+// cancels it. The encoded selections are kept in a directory of their own, by bounds, so that
+// going back to a previous selection does not encode it again. Only the last MAX_NUM_FILES
+// selections are kept.
+public class SelectionPreEncoder {
+    private static final int MAX_NUM_FILES = 4;
+
+    // Encoding of one selection.
+    private class Job extends Thread {
+        final String key;
+        final int startFrame;
+        final int numFrames;
+        volatile boolean cancelled;
+        boolean done;  // set once the thread is done, whether the encoding succeeded or not.
+
+        Job(String key, int startFrame, int numFrames) {
+            super("SelectionPreEncoder");
+            this.key = key;
+            this.startFrame = startFrame;
+            this.numFrames = numFrames;
+            setPriority(Thread.MIN_PRIORITY);
+        }
+
+        public void run() {
+            File file = null;
+            try {
+                file = File.createTempFile("selection", ".m4a", directory);
+                soundFile.WriteFile(file, startFrame, numFrames,
+                        new SoundFile.ProgressListener() {
+                            public boolean reportProgress(double fractionComplete) {
+                                return !cancelled;
+                            }
+                        });
+            } catch (InterruptedIOException e) {
+                file = null;  // cancelled, the file has been deleted.
+            } catch (Exception e) {
+                StringWriter writer = new StringWriter();
+                e.printStackTrace(new PrintWriter(writer));
+                Log.e("SelectionPreEncoder", "run() failed to encode " + key + "\n" +
+                        writer.toString());
+                if (file != null) {
+                    file.delete();
+                    file = null;
+                }
+            }
+            synchronized (SelectionPreEncoder.this) {
+                if (file != null) {
+                    if (cancelled || released) {
+                        file.delete();
+                    } else {
+                        files.put(key, file);
+                    }
+                }
+                done = true;
+                if (job == this) {
+                    job = null;
+                }
+                SelectionPreEncoder.this.notifyAll();
+            }
+        }
+    }
+
+    private final SoundFile soundFile;
+    private final File directory;
+    // Encoded selections by bounds, the least recently used first.
+    private final LinkedHashMap<String, File> files =
+            new LinkedHashMap<String, File>(MAX_NUM_FILES + 1, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+                    if (size() > MAX_NUM_FILES) {
+                        eldest.getValue().delete();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    private Job job;  // selection being encoded, null if none.
+    private boolean released;
+
+    // The encoded selections are written to directory, which must only be used by this object
+    // (files left there by a previous instance are deleted).
+    public SelectionPreEncoder(SoundFile soundFile, File directory) {
+        this.soundFile = soundFile;
+        this.directory = directory;
+        directory.mkdirs();
+        deleteFiles(directory);
+    }
+
+    // Start encoding the frames [startFrame, startFrame + numFrames) in the background, unless
+    // they have already been (or are being) encoded. The selection being encoded, if any, is
+    // cancelled.
+    public synchronized void start(int startFrame, int numFrames) {
+        String key = getKey(startFrame, numFrames);
+        if (released || numFrames <= 0 || files.containsKey(key) ||
+                (job != null && job.key.equals(key))) {
+            return;
+        }
+        cancel();
+        job = new Job(key, startFrame, numFrames);
+        job.start();
+    }
+
+    // Cancel the selection being encoded, if any. Selections already encoded are kept.
+    public synchronized void cancel() {
+        if (job != null) {
+            job.cancelled = true;
+            job = null;
+        }
+    }
+
+    // Move the encoded frames [startFrame, startFrame + numFrames) to outputFile, waiting for
+    // them if they are being encoded. Returns false, without creating outputFile, if they have
+    // not been encoded (or the encoding failed); the selection must then be encoded with
+    // SoundFile.WriteFile().
+    public boolean moveTo(int startFrame, int numFrames, File outputFile)
+            throws IOException, InterruptedException {
+        String key = getKey(startFrame, numFrames);
+        File file;
+        synchronized (this) {
+            Job pending = job;
+            if (pending != null && pending.key.equals(key)) {
+                // The user is waiting for it now.
+                pending.setPriority(Thread.NORM_PRIORITY);
+                while (!pending.done) {
+                    wait();
+                }
+            }
+            file = files.remove(key);
+        }
+        if (file == null) {
+            return false;
+        }
+        // The cache directory is usually on another file system than outputFile.
+        if (!file.renameTo(outputFile)) {
+            try {
+                copy(file, outputFile);
+            } catch (IOException e) {
+                outputFile.delete();
+                throw e;
+            } finally {
+                file.delete();
+            }
+        }
+        return true;
+    }
+
+    // Cancel the selection being encoded and delete the encoded selections. start() does nothing
+    // once this has been called.
+    public synchronized void release() {
+        released = true;
+        cancel();
+        for (Iterator<File> it = files.values().iterator(); it.hasNext(); ) {
+            it.next().delete();
+            it.remove();
+        }
+    }
+
+    private static String getKey(int startFrame, int numFrames) {
+        return startFrame + "+" + numFrames;
+    }
+
+    private static void copy(File input, File output) throws IOException {
+        FileInputStream inputStream = new FileInputStream(input);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(output);
+            try {
+                FileChannel inputChannel = inputStream.getChannel();
+                long size = inputChannel.size();
+                long position = 0;
+                while (position < size) {
+                    long count = inputChannel.transferTo(
+                            position, size - position, outputStream.getChannel());
+                    if (count <= 0) {
+                        throw new IOException("Failed to copy " + input + " to " + output);
+                    }
+                    position += count;
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    private static void deleteFiles(File directory) {
+        File[] oldFiles = directory.listFiles();
+        if (oldFiles != null) {
+            for (File file : oldFiles) {
+                file.delete();
+            }
+        }
+    }
+}
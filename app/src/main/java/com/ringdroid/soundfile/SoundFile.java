@@ -22,13 +22,17 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
+import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
@@ -37,31 +41,70 @@ import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 public class SoundFile {
+    // Mono samples are encoded as mono AAC files.
+    public static final int MONO_ENCODING_MONO = 0;
+    // Mono samples are encoded as stereo AAC files (both channels being the same), for the devices
+    // which have problems reading mono AAC files (e.g. Samsung S3).
+    public static final int MONO_ENCODING_STEREO = 1;
+
+    // Directory where the decoded samples are stored. If null, they are kept on the Java heap.
+    private static volatile File cacheDirectory = null;
+    // Maximum number of threads (and codecs) used to decode a file.
+    private static volatile int numDecodeThreads = 1;
+    // Whether codecs are run with callbacks (when available) rather than polled.
+    private static volatile boolean asyncCodecEnabled = true;
+    // How WriteFile() encodes mono samples: MONO_ENCODING_MONO or MONO_ENCODING_STEREO.
+    private static volatile int monoEncoding = getDefaultMonoEncoding();
+    // Minimum duration of the ranges decoded in parallel.
+    private static final long MIN_DECODE_RANGE_US = 20000000;
+    // Duration decoded (and dropped) before a range, to prime the codec.
+    private static final long DECODE_PREROLL_US = 200000;
+
     private ProgressListener progressListener = null;
+    private DecodeListener decodeListener = null;
     private File inputFile = null;
+    private long startUs = 0;  // presentation time of the first sample in the input file.
 
     // Member variables representing frame data
     private String fileType;
-    private int fileSize;
+    private long fileSize;
     private int avgBitRate;  // Average bit rate in kbps.
     private int sampleRate;
     private int channels;
-    private int numSamples;  // total number of samples per channel in audio file
-    private ByteBuffer decodedBytes;  // Raw audio data
-    private ShortBuffer decodedSamples;  // shared buffer with decodedBytes.
-    // decodedSamples has the following format:
+    private volatile long numSamples;  // total number of samples per channel in audio file
+    private volatile ChunkedSampleBuffer samples;  // Raw audio data
+    private volatile MappedSampleStore sampleStore;  // Non null while decoding into a file.
+    // samples has the following format:
     // {s1c1, s1c2, ..., s1cM, s2c1, ..., s2cM, ..., sNc1, ..., sNcM}
     // where sicj is the ith sample of the jth channel (a sample is a signed short)
     // M is the number of channels (e.g. 2 for stereo) and N is the number of samples per channel.
 
     // Member variables for hack (making it work with old version, until app just uses the samples).
-    private int numFrames;
-    private int[] frameGains;
+    private volatile int numFrames;
+    private volatile WaveformEnvelope envelope;  // per channel min, max and RMS of each frame.
     private int[] frameLens;
     private int[] frameOffsets;
+    private MP3FrameIndex mp3Index;  // see getMP3Index().
+    private boolean mp3IndexScanned;
+    private byte[] aacConfig;  // see getAACConfig().
+    private boolean aacConfigChecked;
+    // Offset in the input file of the first sample, when the samples are mapped from a 16 bits
+    // PCM WAV file (see ReadWAVFile()), -1 otherwise.
+    private long wavDataOffset = -1;
+    private int expectedNumFrames;  // number of frames expected once the file is fully decoded.
+
+    // Computes the envelope while the samples are being decoded or recorded.
+    private EnvelopeCalculator envelopeCalculator;
+
+    // Number of bytes read from the input file by all the decoding threads.
+    private AtomicLong decodeSizeRead = new AtomicLong();
+    private long decodeSizeExpected;  // number of bytes of the input file that should be read.
+    private volatile boolean decodeCancelled;  // set when the progress listener stops decoding.
 
     // Progress listener interface.
     public interface ProgressListener {
@@ -73,6 +116,29 @@ public class SoundFile {
         boolean reportProgress(double fractionComplete);
     }
 
+    // Listener notified while the samples are being decoded.
+    public interface DecodeListener {
+        /**
+         * Will be called by the SoundFile class from the decoding thread each time a new buffer
+         * of samples has been decoded. Until create() returns, getNumSamples(), getNumFrames(),
+         * getEnvelope() and getSampleCursor() only describe the part of the file decoded so far,
+         * which can already be displayed and played.
+         */
+        void onSamplesDecoded(SoundFile soundFile);
+    }
+
+    // Destination of the samples decoded by decodeTrack().
+    private interface SampleOutput {
+        // Called each time size bytes of the input file have been fed to the codec.
+        // Returns false to stop decoding.
+        boolean onInputRead(int size);
+
+        // Called with each buffer of decoded samples, which are the bytes between the position and
+        // the limit of samples. The buffer is only valid until write() returns.
+        // Returns false to stop decoding.
+        boolean write(ByteBuffer samples) throws IOException;
+    }
+
     // Custom exception for invalid inputs.
     public class InvalidInputException extends Exception {
         // Serial version ID generated by Eclipse.
@@ -97,8 +163,65 @@ public class SoundFile {
         return false;
     }
 
+    // Set the directory in which decoded samples are stored (typically the app cache directory),
+    // instead of the Java heap. Decoded files are also cached there, so that opening the same file
+    // again does not require to decode it.
+    public static void setCacheDirectory(File directory) {
+        cacheDirectory = directory;
+    }
+
+    // Return the waveform peaks saved the last time fileName was decoded, or null if there are
+    // none. This does not decode anything.
+    public static WaveformPeaks getPeaks(String fileName) {
+        File directory = cacheDirectory;
+        if (directory == null) {
+            return null;
+        }
+        return WaveformPeaks.read(new File(directory, "peaks"), new File(fileName));
+    }
+
+    // Set the maximum number of threads used to decode a file. With more than one thread, long
+    // files are split in ranges decoded in parallel, each with its own codec.
+    public static void setNumDecodeThreads(int numThreads) {
+        numDecodeThreads = Math.max(1, numThreads);
+    }
+
+    // Run the decoders and encoders in asynchronous mode, driven by codec callbacks on a handler
+    // thread, instead of polling them. Only used on Android M and later.
+    public static void setAsyncCodecEnabled(boolean enabled) {
+        asyncCodecEnabled = enabled;
+    }
+
+    // Set how WriteFile() encodes mono samples (MONO_ENCODING_MONO or MONO_ENCODING_STEREO). The
+    // default depends on the device, see getDefaultMonoEncoding().
+    public static void setMonoEncoding(int encoding) {
+        monoEncoding = encoding;
+    }
+
+    // Mono AAC files are encoded as stereo only on the devices known to have problems reading
+    // them: the Samsung Galaxy S3 models.
+    private static int getDefaultMonoEncoding() {
+        String[] models = {"GT-I930", "SGH-I747", "SGH-T999", "SCH-I535", "SPH-L710", "SCH-R530"};
+        String model = Build.MODEL;
+        if (model != null && "samsung".equalsIgnoreCase(Build.MANUFACTURER)) {
+            for (String prefix : models) {
+                if (model.startsWith(prefix)) {
+                    return MONO_ENCODING_STEREO;
+                }
+            }
+        }
+        return MONO_ENCODING_MONO;
+    }
+
     // Create and return a SoundFile object using the file fileName.
     public static SoundFile create(String fileName, ProgressListener progressListener) throws IOException, InvalidInputException {
+        return create(fileName, progressListener, null);
+    }
+
+    // Create and return a SoundFile object using the file fileName. decodeListener (if not null)
+    // is notified each time new samples are available, before the file is fully decoded.
+    public static SoundFile create(String fileName, ProgressListener progressListener,
+            DecodeListener decodeListener) throws IOException, InvalidInputException {
         // First check that the file exists and that its extension is supported.
         File f = new File(fileName);
         if (!f.exists()) {
@@ -114,7 +237,32 @@ public class SoundFile {
         }
         SoundFile soundFile = new SoundFile();
         soundFile.setProgressListener(progressListener);
-        soundFile.ReadFile(f);
+        soundFile.decodeListener = decodeListener;
+        soundFile.ReadFile(f, 0, Long.MAX_VALUE);
+        return soundFile;
+    }
+
+    // Create and return a SoundFile object containing only the samples of fileName presented in
+    // [startUs, endUs). Only this window (plus the codec pre-roll) is decoded, which is much
+    // faster than create() for a short window of a long file. Sample 0 of the returned object is
+    // the sample presented at startUs (see getStartUs()). Decoded windows are not cached.
+    public static SoundFile createRange(String fileName, long startUs, long endUs,
+            ProgressListener progressListener) throws IOException, InvalidInputException {
+        File f = new File(fileName);
+        if (!f.exists()) {
+            throw new FileNotFoundException(fileName);
+        }
+        String name = f.getName().toLowerCase();
+        String[] components = name.split("\\.");
+        if (components.length < 2) {
+            return null;
+        }
+        if (!Arrays.asList(getSupportedExtensions()).contains(components[components.length - 1])) {
+            return null;
+        }
+        SoundFile soundFile = new SoundFile();
+        soundFile.setProgressListener(progressListener);
+        soundFile.ReadFile(f, startUs, endUs);
         return soundFile;
     }
 
@@ -131,11 +279,16 @@ public class SoundFile {
         return soundFile;
     }
 
+    // The file the samples were read from, null for recorded audio.
+    public File getInputFile() {
+        return inputFile;
+    }
+
     public String getFiletype() {
         return fileType;
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return fileSize;
     }
 
@@ -147,11 +300,19 @@ public class SoundFile {
         return sampleRate;
     }
 
+    // Presentation time, in the input file, of the first sample. Only non 0 for objects created
+    // with createRange().
+    public long getStartUs() {
+        return startUs;
+    }
+
     public int getChannels() {
         return channels;
     }
 
-    public int getNumSamples() {
+    // Sample counts and indices are 64 bits, so that files of several hours (over 2^31 bytes of
+    // samples) can be decoded, played and saved.
+    public long getNumSamples() {
         return numSamples;  // Number of samples per channel.
     }
 
@@ -160,29 +321,48 @@ public class SoundFile {
         return numFrames;
     }
 
+    // Number of frames the file should contain once fully decoded. This is an estimate based on
+    // the duration of the audio track until the file is fully decoded.
+    public int getExpectedNumFrames() {
+        return expectedNumFrames;
+    }
+
     // Should be removed when the app will use directly the samples instead of the frames.
     public int getSamplesPerFrame() {
         return 1024;  // just a fixed value here...
     }
 
-    // Should be removed when the app will use directly the samples instead of the frames.
-    public int[] getFrameGains() {
-        return frameGains;
+    // Per channel min, max and RMS values of each frame (of getSamplesPerFrame() samples), for the
+    // frames decoded so far.
+    public WaveformEnvelope getEnvelope() {
+        return envelope;
     }
 
-    public ShortBuffer getSamples() {
-        if (decodedSamples != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
-                Build.VERSION.SDK_INT <= Build.VERSION_CODES.N_MR1) {
-                // Hack for Nougat where asReadOnlyBuffer fails to respect byte ordering.
-                // See https://code.google.com/p/android/issues/detail?id=223824
-                return decodedSamples;
-            } else {
-                return decodedSamples.asReadOnlyBuffer();
+    // Return a cursor over the samples decoded so far, positioned on the first sample.
+    // Each call returns a new cursor, so that the samples can be read from several threads.
+    public SampleCursor getSampleCursor() {
+        // numSamples must be read before the samples, which may still be growing.
+        long numBytes = numSamples * channels * 2;
+        ChunkedSampleBuffer buffer = samples;
+        MappedSampleStore store = sampleStore;
+        if (buffer == null && store != null) {
+            // The file is still being decoded into a file: map the samples decoded so far.
+            try {
+                buffer = store.map(numBytes);
+            } catch (IOException e) {
+                buffer = samples;
+                if (buffer == null) {
+                    Log.e("SoundFile", "getSampleCursor() failed to map the samples\n" +
+                            getStackTrace(e));
+                    return null;
+                }
+                // Decoding just completed and the store has been closed.
             }
-        } else {
+        }
+        if (buffer == null) {
             return null;
         }
+        return buffer.cursor(numBytes, channels);
     }
 
     // A SoundFile object should only be created using the static methods create() and record().
@@ -193,15 +373,34 @@ public class SoundFile {
         this.progressListener = progressListener;
     }
 
-    private void ReadFile(File inputFile) throws IOException, InvalidInputException {
-        MediaExtractor extractor = new MediaExtractor();
+    // Decode the samples of inputFile presented in [startUs, endUs). Use 0 and Long.MAX_VALUE to
+    // decode the whole file.
+    private void ReadFile(File inputFile, long startUs, long endUs)
+            throws IOException, InvalidInputException {
         MediaFormat format = null;
         int i;
 
         this.inputFile = inputFile;
         String[] components = this.inputFile.getPath().split("\\.");
         fileType = components[components.length - 1];
-        fileSize = (int) this.inputFile.length();
+        fileSize = this.inputFile.length();
+        startUs = Math.max(0, startUs);
+        if (endUs <= startUs) {
+            throw new InvalidInputException("Invalid range [" + startUs + ", " + endUs + ")us");
+        }
+        this.startUs = startUs;
+        boolean wholeFile = (startUs == 0 && endUs == Long.MAX_VALUE);
+        if (fileType.equalsIgnoreCase("wav") && ReadWAVFile(startUs, endUs, wholeFile)) {
+            return;
+        }
+        PcmCache cache = null;
+        if (cacheDirectory != null && wholeFile) {
+            cache = new PcmCache(new File(cacheDirectory, "pcm"), cacheDirectory);
+            if (ReadCachedFile(cache)) {
+                return;
+            }
+        }
+        MediaExtractor extractor = new MediaExtractor();
         extractor.setDataSource(this.inputFile.getPath());
         int numTracks = extractor.getTrackCount();
         // find and select the first audio track present in the file.
@@ -218,181 +417,778 @@ public class SoundFile {
         channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
         sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
         // Expected total number of samples per channel.
-        int expectedNumSamples =
-            (int)((format.getLong(MediaFormat.KEY_DURATION) / 1000000.f) * sampleRate + 0.5f);
+        long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        if (durationUs > 0) {
+            // Rough estimate, updated once the file is fully decoded.
+            avgBitRate = (int)(fileSize * 8 * 1000 / durationUs);
+        }
+        decodeSizeExpected = fileSize;
+        if (!wholeFile) {
+            if (durationUs > 0) {
+                decodeSizeExpected = Math.max(1, (long)(fileSize *
+                        ((double)(Math.min(endUs, durationUs) - startUs) / durationUs)));
+            }
+            durationUs = Math.min(endUs, durationUs) - startUs;
+            if (durationUs <= 0) {
+                throw new InvalidInputException(
+                        "Range starts after the end of " + this.inputFile);
+            }
+        }
+        long expectedNumSamples = usToSamples(durationUs);
+        expectedNumFrames =
+                (int)((expectedNumSamples + getSamplesPerFrame() - 1) / getSamplesPerFrame());
+        envelopeCalculator =
+                new EnvelopeCalculator(channels, getSamplesPerFrame(), expectedNumFrames);
+        envelope = envelopeCalculator.getEnvelope();
 
-        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
-        codec.configure(format, null, null, 0);
-        codec.start();
+        // Store the decoded samples in a scratch file if possible. Otherwise store them in
+        // memory, in 1MB chunks.
+        final MappedSampleStore store = createSampleStore();
+        sampleStore = store;
+        if (store == null) {
+            samples = new ChunkedSampleBuffer();
+        }
+        SampleOutput output = new SampleOutput() {
+            public boolean onInputRead(int size) {
+                return reportDecodeProgress(size);
+            }
 
-        int decodedSamplesSize = 0;  // size of the output buffer containing decoded samples.
-        byte[] decodedSamples = null;
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        int sample_size;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        long presentation_time;
-        int tot_size_read = 0;
-        boolean done_reading = false;
-
-        // Set the size of the decoded samples buffer to 1MB (~6sec of a stereo stream at 44.1kHz).
-        // For longer streams, the buffer size will be increased later on, calculating a rough
-        // estimate of the total size needed to store all the samples in order to resize the buffer
-        // only once.
-        decodedBytes = ByteBuffer.allocate(1<<20);
-        boolean firstSampleData = true;
-        while (true) {
-            // read data from file and feed it to the decoder input buffers.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                sample_size = extractor.readSampleData(inputBuffers[inputBufferIndex], 0);
-                if (firstSampleData
-                        && format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm")
-                        && sample_size == 2) {
-                    // For some reasons on some devices (e.g. the Samsung S3) you should not
-                    // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
-                    // crash. These two bytes do not contain music data but basic info on the
-                    // stream (e.g. channel configuration and sampling frequency), and skipping them
-                    // seems OK with other devices (MediaCodec has already been configured and
-                    // already knows these parameters).
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                } else if (sample_size < 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
+            public boolean write(ByteBuffer buffer) throws IOException {
+                updateEnvelope(buffer);
+                // Copy the samples straight from the codec buffer to the store.
+                if (store != null) {
+                    store.write(buffer);
                 } else {
-                    presentation_time = extractor.getSampleTime();
-                    codec.queueInputBuffer(inputBufferIndex, 0, sample_size, presentation_time, 0);
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                    if (progressListener != null) {
-                        if (!progressListener.reportProgress((float)(tot_size_read) / fileSize)) {
-                            // We are asked to stop reading the file. Returning immediately. The
-                            // SoundFile object is invalid and should NOT be used afterward!
-                            extractor.release();
-                            extractor = null;
-                            codec.stop();
-                            codec.release();
-                            codec = null;
-                            return;
-                        }
+                    try {
+                        samples.append(buffer);
+                    } catch (OutOfMemoryError oome) {
+                        // Failed to allocate memory... Stop reading more data and finalize the
+                        // instance with the data decoded so far.
+                        return false;
+                    }
+                }
+                numSamples = (store != null ? store.size() : samples.size()) / (2 * channels);
+                if (decodeListener != null) {
+                    decodeListener.onSamplesDecoded(SoundFile.this);
+                }
+                return true;
+            }
+        };
+
+        try {
+            if (wholeFile) {
+                decodeRanges(extractor, i, format, durationUs, expectedNumSamples, store, output);
+            } else {
+                if (startUs > 0) {
+                    extractor.seekTo(Math.max(0, startUs - DECODE_PREROLL_US),
+                            MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                }
+                decodeTrack(extractor, format, startUs > 0 ? startUs : Long.MIN_VALUE, endUs,
+                        expectedNumSamples, false, output);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (store != null) {
+                sampleStore = null;
+                store.close();
+            }
+            throw e;
+        } finally {
+            extractor.release();
+            extractor = null;
+        }
+        if (decodeCancelled) {
+            // We are asked to stop reading the file. Returning immediately. The SoundFile object
+            // is invalid and should NOT be used afterward!
+            if (store != null) {
+                sampleStore = null;
+                store.close();
+            }
+            return;
+        }
+
+        long decodedSize = (store != null) ? store.size() : samples.size();
+        numSamples = decodedSize / (channels * 2);  // One sample = 2 bytes.
+        finishEnvelope();
+        if (store != null) {
+            try {
+                samples = store.map(decodedSize);
+            } catch (IOException e) {
+                sampleStore = null;
+                store.close();
+                throw e;
+            }
+        }
+        if (wholeFile) {
+            avgBitRate = (int)((fileSize * 8) * ((double) sampleRate / numSamples) / 1000);
+        }
+
+        if (store != null) {
+            sampleStore = null;
+            if (cache != null) {
+                // Keep the decoded samples for the next time this file is opened.
+                PcmCache.Entry entry = new PcmCache.Entry();
+                entry.sampleRate = sampleRate;
+                entry.channels = channels;
+                entry.numSamples = numSamples;
+                entry.avgBitRate = avgBitRate;
+                entry.envelope = envelope;
+                cache.put(inputFile, entry, store);
+            } else {
+                store.close();  // The mapping stays valid after the scratch file is deleted.
+            }
+        }
+        if (cacheDirectory != null && wholeFile) {
+            writePeaks();
+        }
+
+        setFrameLensAndOffsets();
+        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
+    }
+
+    // Read a 16 bits PCM WAV file without MediaExtractor and MediaCodec: the data chunk of the
+    // file is memory mapped and used as is as the sample store, so the samples are available
+    // right away and never copied. Only the envelope needs a pass over the samples.
+    // Returns false if inputFile is not such a WAV file, in which case it must be decoded.
+    private boolean ReadWAVFile(long startUs, long endUs, boolean wholeFile)
+            throws IOException, InvalidInputException {
+        RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+        ChunkedSampleBuffer buffer;
+        try {
+            WAVParser wav;
+            try {
+                wav = WAVParser.parse(file.getChannel());
+            } catch (IOException e) {
+                Log.w("SoundFile", "ReadWAVFile() failed to parse " + inputFile + ", decoding " +
+                        "it instead\n" + e.toString());
+                return false;
+            }
+            if (!wav.isPcm16()) {
+                return false;  // e.g. 24 bits or floating point samples.
+            }
+            sampleRate = wav.getSampleRate();
+            channels = wav.getChannels();
+            long firstSample = Math.min(usToSamples(startUs), wav.getNumSamples());
+            long lastSample = wav.getNumSamples();
+            if (endUs != Long.MAX_VALUE) {
+                lastSample = Math.min(usToSamples(endUs), lastSample);
+            }
+            if (lastSample <= firstSample) {
+                throw new InvalidInputException("Range starts after the end of " + inputFile);
+            }
+            wavDataOffset = wav.getDataOffset() + firstSample * channels * 2;
+            buffer = ChunkedSampleBuffer.map(file.getChannel(), wavDataOffset,
+                    (lastSample - firstSample) * channels * 2);
+        } finally {
+            IOUtils.closeQuietly(file);  // The mapping stays valid.
+        }
+        avgBitRate = sampleRate * channels * 16 / 1000;
+        decodeSizeExpected = Math.max(1, buffer.size());
+        expectedNumFrames = (int)((buffer.size() / (channels * 2) + getSamplesPerFrame() - 1) /
+                getSamplesPerFrame());
+        envelopeCalculator =
+                new EnvelopeCalculator(channels, getSamplesPerFrame(), expectedNumFrames);
+        envelope = envelopeCalculator.getEnvelope();
+
+        // Publish the samples progressively, as the envelope is computed, exactly as if the
+        // file was decoded.
+        samples = buffer;
+        SampleCursor cursor = buffer.cursor(buffer.size(), channels);
+        ByteBuffer view;
+        while ((view = cursor.nextBuffer(1 << 20)) != null) {
+            updateEnvelope(view);
+            numSamples = cursor.getPosition();
+            if (decodeListener != null) {
+                decodeListener.onSamplesDecoded(this);
+            }
+            if (!reportDecodeProgress(view.remaining())) {
+                // The SoundFile object is invalid and should NOT be used afterward!
+                return true;
+            }
+        }
+        finishEnvelope();
+        if (cacheDirectory != null && wholeFile) {
+            writePeaks();
+        }
+        setFrameLensAndOffsets();
+        return true;
+    }
+
+    // Save the waveform peaks of the whole file, see getPeaks().
+    private void writePeaks() {
+        new WaveformPeaks(sampleRate, envelope).write(new File(cacheDirectory, "peaks"), inputFile);
+    }
+
+    // Return a new sample store in the cache directory, or null if the samples must be kept in
+    // memory.
+    private MappedSampleStore createSampleStore() {
+        if (cacheDirectory == null) {
+            return null;
+        }
+        try {
+            return new MappedSampleStore(cacheDirectory);
+        } catch (IOException e) {
+            Log.w("SoundFile", "createSampleStore() failed to create a sample store, using the " +
+                    "heap\n" + getStackTrace(e));
+            return null;
+        }
+    }
+
+    // Add size to the number of bytes read from the input file, and report the progress.
+    // Returns false, and marks the decoding as cancelled, if the listener asks to stop.
+    private boolean reportDecodeProgress(int size) {
+        long totalSizeRead = decodeSizeRead.addAndGet(size);
+        if (progressListener != null &&
+                !progressListener.reportProgress((double)(totalSizeRead) / decodeSizeExpected)) {
+            decodeCancelled = true;
+            return false;
+        }
+        return true;
+    }
+
+    // Decode the whole track selected in extractor and pass the samples, in order, to output.
+    // If more than one decoding thread is allowed, the samples are stored in a file and the track
+    // is long enough, the track is split in ranges starting on sync samples. The first range is
+    // decoded by the calling thread and passed to output (so that output gets the beginning of
+    // the file as soon as possible). Each other range is decoded by a RangeDecoder thread, with
+    // its own extractor and codec, straight into its slot of store, and published once all the
+    // previous ranges have been (see publishSamples()).
+    // The slot of a range starts at the presentation time of its sync sample, and the decoded
+    // samples are placed in it by counting them from that sync sample, not by the presentation
+    // times of the decoded buffers, so the ranges neither overlap nor leave gaps.
+    private void decodeRanges(MediaExtractor extractor, int trackIndex, MediaFormat format,
+            long durationUs, long expectedNumSamples, MappedSampleStore store,
+            final SampleOutput output) throws IOException {
+        long[] bounds = (store != null) ?
+                getRangeBounds(extractor, durationUs) : new long[] {Long.MIN_VALUE, Long.MAX_VALUE};
+        int numRanges = bounds.length - 1;
+        if (numRanges == 1) {
+            decodeTrack(extractor, format, Long.MIN_VALUE, Long.MAX_VALUE, expectedNumSamples,
+                    false, output);
+            return;
+        }
+
+        // The first range is written from the beginning of store.
+        long firstSample = usToSamples(Math.max(0, extractor.getSampleTime()));
+        RangeDecoder[] decoders = new RangeDecoder[numRanges];
+        try {
+            for (int k = 1; k < numRanges; k++) {
+                long slotStart = usToSamples(bounds[k]) - firstSample;
+                long maxNumSamples = Long.MAX_VALUE;
+                if (k == numRanges - 1) {
+                    maxNumSamples = expectedNumSamples - slotStart;
+                }
+                decoders[k] = new RangeDecoder(trackIndex, bounds[k], bounds[k + 1], maxNumSamples,
+                        store, slotStart * 2 * channels);
+                decoders[k].start();
+            }
+            if (!decodeTrack(extractor, format, Long.MIN_VALUE, bounds[1], Long.MAX_VALUE, true,
+                    output)) {
+                return;
+            }
+            for (int k = 1; k < numRanges; k++) {
+                final RangeDecoder decoder = decoders[k];
+                while (decoder.isAlive()) {
+                    // Keep reporting the progress of the other decoders.
+                    try {
+                        decoder.join(100);
+                    } catch (InterruptedException e) {
+                        decodeCancelled = true;
+                    }
+                    if (decodeCancelled || !reportDecodeProgress(0)) {
+                        return;
+                    }
+                }
+                if (decoder.error != null) {
+                    // e.g. the device ran out of codec instances. Decode the range here instead,
+                    // over whatever the decoder has written.
+                    Log.w("SoundFile", "decodeRanges() failed to decode range " + k +
+                            " in parallel\n" + getStackTrace(decoder.error));
+                    decoder.numBytesWritten = 0;
+                    extractor.seekTo(Math.max(0, bounds[k] - DECODE_PREROLL_US),
+                            MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    if (!decodeTrack(extractor, format, bounds[k], bounds[k + 1],
+                            decoder.maxNumSamples, true, new SampleOutput() {
+                                public boolean onInputRead(int size) {
+                                    return output.onInputRead(size);
+                                }
+
+                                public boolean write(ByteBuffer samples) throws IOException {
+                                    return decoder.write(samples);
+                                }
+                            })) {
+                        return;
                     }
                 }
-                firstSampleData = false;
-            }
-
-            // Get decoded stream from the decoder output buffers.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0) {
-                if (decodedSamplesSize < info.size) {
-                    decodedSamplesSize = info.size;
-                    decodedSamples = new byte[decodedSamplesSize];
-                }
-                outputBuffers[outputBufferIndex].get(decodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                // Check if buffer is big enough. Resize it if it's too small.
-                if (decodedBytes.remaining() < info.size) {
-                    // Getting a rough estimate of the total size, allocate 20% more, and
-                    // make sure to allocate at least 5MB more than the initial size.
-                    int position = decodedBytes.position();
-                    int newSize = (int)((position * (1.0 * fileSize / tot_size_read)) * 1.2);
-                    if (newSize - position < info.size + 5 * (1<<20)) {
-                        newSize = position + info.size + 5 * (1<<20);
+                if (decoder.numBytesWritten > 0 &&
+                        !publishSamples(store, decoder.offset + decoder.numBytesWritten)) {
+                    return;
+                }
+            }
+        } finally {
+            for (RangeDecoder decoder : decoders) {
+                if (decoder != null) {
+                    decoder.cancel();
+                }
+            }
+            for (RangeDecoder decoder : decoders) {
+                if (decoder != null) {
+                    try {
+                        decoder.join();
+                    } catch (InterruptedException e) {
+                        // Nothing to do.
                     }
-                    ByteBuffer newDecodedBytes = null;
-                    // Try to allocate memory. If we are OOM, try to run the garbage collector.
-                    int retry = 10;
-                    while(retry > 0) {
+                }
+            }
+        }
+    }
+
+    // Publish the samples written in place in store (see MappedSampleStore.write(buffer,
+    // position)) up to numBytes, as output.write() does for the samples it appends: the envelope
+    // is computed from a mapping of the store, so the samples are not copied again.
+    // Samples never written (if a range came out short) read as silence.
+    // Returns false if the decoding has been cancelled.
+    private boolean publishSamples(MappedSampleStore store, long numBytes) throws IOException {
+        long position = store.size();
+        if (numBytes <= position) {
+            return true;
+        }
+        SampleCursor cursor =
+                store.map(position, numBytes - position).cursor(numBytes - position, channels);
+        ByteBuffer view;
+        while ((view = cursor.nextBuffer(1 << 20)) != null) {
+            updateEnvelope(view);
+            store.setSize(position + cursor.getPosition() * 2 * channels);
+            numSamples = store.size() / (2 * channels);
+            if (decodeListener != null) {
+                decodeListener.onSamplesDecoded(this);
+            }
+            if (decodeCancelled) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Return the bounds of the ranges in which the track selected in extractor should be
+    // decoded: {Long.MIN_VALUE, t1, ..., tN-1, Long.MAX_VALUE}, where each ti is the presentation
+    // time of a sync sample. The extractor is left at the beginning of the track.
+    private long[] getRangeBounds(MediaExtractor extractor, long durationUs) {
+        int numRanges = (int)Math.min(numDecodeThreads, durationUs / MIN_DECODE_RANGE_US);
+        if (numRanges <= 1) {
+            return new long[] {Long.MIN_VALUE, Long.MAX_VALUE};
+        }
+        long[] bounds = new long[numRanges + 1];
+        int n = 0;
+        bounds[n++] = Long.MIN_VALUE;
+        for (int k = 1; k < numRanges; k++) {
+            extractor.seekTo(durationUs * k / numRanges, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            long timeUs = extractor.getSampleTime();
+            if (timeUs > 0 && timeUs > bounds[n - 1]) {
+                bounds[n++] = timeUs;
+            }
+        }
+        bounds[n++] = Long.MAX_VALUE;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        return Arrays.copyOf(bounds, n);
+    }
+
+    // Convert a presentation time to a number of samples (per channel).
+    private long usToSamples(long timeUs) {
+        return (timeUs * sampleRate + 500000) / 1000000;
+    }
+
+    // Decode the track selected in extractor, from its current position, and pass the samples to
+    // output. Decoded samples presented before startUs (codec pre-roll) or from endUs are dropped,
+    // and encoded samples presented from endUs are not fed to the codec. Use Long.MIN_VALUE and
+    // Long.MAX_VALUE to decode everything. Decoding also stops once maxNumSamples samples have
+    // been passed to output.
+    // If countSamples is set, the decoded samples are presented from the presentation time of
+    // the encoded sample at the current position (a sync sample), one after the other, whatever
+    // the presentation times of the decoded buffers. Otherwise these times are used.
+    // Returns false if output asked to stop.
+    private boolean decodeTrack(MediaExtractor extractor, MediaFormat format, long startUs,
+            long endUs, long maxNumSamples, boolean countSamples, SampleOutput output)
+            throws IOException {
+        TrackDecoder decoder = new TrackDecoder(
+                extractor, format, startUs, endUs, maxNumSamples, countSamples, output);
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        try {
+            runCodec(codec, format, 0, decoder);
+        } finally {
+            codec.release();
+        }
+        return !decoder.stopped;
+    }
+
+    // Run codec until client is done. With codec callbacks (see setAsyncCodecEnabled()), the
+    // calling thread sleeps until then. Otherwise it polls the codec.
+    // The codec is configured with format and flags, started, and stopped once client is done.
+    private void runCodec(MediaCodec codec, MediaFormat format, int flags, CodecClient client)
+            throws IOException {
+        if (asyncCodecEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            new AsyncCodecRunner(client).run(codec, format, flags);
+            return;
+        }
+        codec.configure(format, null, null, flags);
+        codec.start();
+        try {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (!client.isDone()) {
+                int inputBufferIndex = codec.dequeueInputBuffer(100);
+                if (inputBufferIndex >= 0) {
+                    client.queueInput(
+                            codec, inputBufferIndex, codec.getInputBuffer(inputBufferIndex));
+                }
+                int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+                if (outputBufferIndex >= 0) {
+                    client.processOutput(
+                            codec, outputBufferIndex, codec.getOutputBuffer(outputBufferIndex),
+                            info);
+                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // Subsequent data will conform to new format.
+                    // We could check that codec.getOutputFormat(), which is the new output format,
+                    // is what we expect.
+                }
+            }
+        } finally {
+            codec.stop();
+        }
+    }
+
+    // Feeds a codec and consumes its output, driven by runCodec().
+    private interface CodecClient {
+        // Fill and queue the input buffer index, unless there is nothing left to feed.
+        void queueInput(MediaCodec codec, int index, ByteBuffer buffer) throws IOException;
+
+        // Consume and release the output buffer index, described by info.
+        void processOutput(MediaCodec codec, int index, ByteBuffer buffer,
+                MediaCodec.BufferInfo info) throws IOException;
+
+        // Returns true once all the output has been consumed, or to stop the codec early.
+        boolean isDone();
+    }
+
+    // Runs a codec in asynchronous mode: the codec calls back a dedicated handler thread when an
+    // input buffer is free or an output buffer is ready, instead of being polled. The input is
+    // only read (from the extractor, or from the samples for an encoder) when the codec has room
+    // for it, and a slow output stalls the input, so no side gets ahead of the other.
+    // Requires Android M (MediaCodec.setCallback() with a handler): see runCodec().
+    @TargetApi(Build.VERSION_CODES.M)
+    private static class AsyncCodecRunner extends MediaCodec.Callback {
+        private CodecClient client;
+        private boolean finished;  // set once the codec must not be used by the callbacks.
+        private Exception error;
+
+        AsyncCodecRunner(CodecClient client) {
+            this.client = client;
+        }
+
+        void run(MediaCodec codec, MediaFormat format, int flags) throws IOException {
+            HandlerThread thread = new HandlerThread("SoundFile codec");
+            thread.start();
+            boolean started = false;
+            try {
+                codec.setCallback(this, new Handler(thread.getLooper()));
+                codec.configure(format, null, null, flags);
+                codec.start();
+                started = true;
+                synchronized (this) {
+                    while (!client.isDone() && error == null) {
                         try {
-                            newDecodedBytes = ByteBuffer.allocate(newSize);
-                            break;
-                        } catch (OutOfMemoryError oome) {
-                            // setting android:largeHeap="true" in <application> seem to help not
-                            // reaching this section.
-                            retry--;
+                            wait();
+                        } catch (InterruptedException e) {
+                            error = new InterruptedIOException("Interrupted while running codec");
                         }
                     }
-                    if (retry == 0) {
-                        // Failed to allocate memory... Stop reading more data and finalize the
-                        // instance with the data decoded so far.
-                        break;
-                    }
-                    //ByteBuffer newDecodedBytes = ByteBuffer.allocate(newSize);
-                    decodedBytes.rewind();
-                    newDecodedBytes.put(decodedBytes);
-                    decodedBytes = newDecodedBytes;
-                    decodedBytes.position(position);
-                }
-                decodedBytes.put(decodedSamples, 0, info.size);
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Subsequent data will conform to new format.
-                // We could check that codec.getOutputFormat(), which is the new output format,
-                // is what we expect.
+                    finished = true;
+                }
+            } finally {
+                synchronized (this) {
+                    finished = true;
+                }
+                // Let the pending callbacks return before stopping the codec.
+                thread.quitSafely();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    // Nothing to do.
+                }
+                if (started) {
+                    codec.stop();
+                }
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+        }
+
+        @Override
+        public synchronized void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (finished || error != null) {
+                return;
+            }
+            try {
+                client.queueInput(codec, index, codec.getInputBuffer(index));
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onOutputBufferAvailable(
+                MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (finished || error != null) {
+                return;
+            }
+            try {
+                client.processOutput(codec, index, codec.getOutputBuffer(index), info);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            if (error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            // Subsequent data will conform to new format.
+        }
+    }
+
+    // Feeds the encoded samples of the track selected in an extractor to a decoder, and passes the
+    // decoded samples to an output. See decodeTrack().
+    private class TrackDecoder implements CodecClient {
+        private MediaExtractor extractor;
+        private boolean isAAC;
+        private long endUs;
+        private long startSample;
+        private long endSample;
+        private long maxNumSamples;
+        private SampleOutput output;
+        // Presentation of the next decoded sample if the samples are counted, else Long.MIN_VALUE.
+        private long nextSample = Long.MIN_VALUE;
+        private long numOutputSamples = 0;  // number of samples passed to output so far.
+        private boolean firstSampleData = true;
+        private boolean doneReading = false;
+        private boolean done = false;
+        private boolean stopped = false;  // set if output asked to stop.
+
+        TrackDecoder(MediaExtractor extractor, MediaFormat format, long startUs, long endUs,
+                long maxNumSamples, boolean countSamples, SampleOutput output) {
+            this.extractor = extractor;
+            isAAC = format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm");
+            this.endUs = endUs;
+            startSample = (startUs == Long.MIN_VALUE) ? Long.MIN_VALUE : usToSamples(startUs);
+            endSample = (endUs == Long.MAX_VALUE) ? Long.MAX_VALUE : usToSamples(endUs);
+            this.maxNumSamples = maxNumSamples;
+            this.output = output;
+            if (countSamples) {
+                nextSample = usToSamples(Math.max(0, extractor.getSampleTime()));
+            }
+        }
+
+        public void queueInput(MediaCodec codec, int index, ByteBuffer buffer) {
+            if (doneReading || done) {
+                return;
+            }
+            // read data from file and feed it to the decoder input buffer.
+            int sample_size = extractor.readSampleData(buffer, 0);
+            if (firstSampleData && isAAC && sample_size == 2) {
+                // For some reasons on some devices (e.g. the Samsung S3) you should not
+                // provide the first two bytes of an AAC stream, otherwise the MediaCodec
+                // will crash. These two bytes do not contain music data but basic info on
+                // the stream (e.g. channel configuration and sampling frequency), and
+                // skipping them seems OK with other devices (MediaCodec has already been
+                // configured and already knows these parameters).
+                extractor.advance();
+                output.onInputRead(sample_size);
+                sample_size = extractor.readSampleData(buffer, 0);
+            }
+            firstSampleData = false;
+            if (sample_size < 0
+                    || (endUs != Long.MAX_VALUE && extractor.getSampleTime() >= endUs)) {
+                // All samples have been read.
+                codec.queueInputBuffer(index, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                doneReading = true;
+            } else {
+                long presentation_time = extractor.getSampleTime();
+                codec.queueInputBuffer(index, 0, sample_size, presentation_time, 0);
+                extractor.advance();
+                if (!output.onInputRead(sample_size)) {
+                    stopped = true;
+                    done = true;
+                }
+            }
+        }
+
+        public void processOutput(MediaCodec codec, int index, ByteBuffer buffer,
+                MediaCodec.BufferInfo info) throws IOException {
+            if (done) {
+                codec.releaseOutputBuffer(index, false);
+                return;
+            }
+            long bufferEnd = Long.MIN_VALUE;
+            int offset = 0;
+            int size = 0;
+            if (info.size > 0) {
+                // Only keep the samples presented in [startUs, endUs).
+                size = info.size;
+                long bufferStart = (nextSample != Long.MIN_VALUE) ?
+                        nextSample : usToSamples(info.presentationTimeUs);
+                bufferEnd = bufferStart + info.size / (2 * channels);
+                if (nextSample != Long.MIN_VALUE) {
+                    nextSample = bufferEnd;
+                }
+                if (bufferStart < startSample || bufferEnd > endSample) {
+                    long first = Math.max(bufferStart, startSample);
+                    long last = Math.min(bufferEnd, endSample);
+                    offset = (int)(Math.max(0, first - bufferStart) * 2 * channels);
+                    size = (int)(Math.max(0, last - first) * 2 * channels);
+                }
+            }
+            if (size > 0) {
+                // The samples are passed to output in the codec buffer itself, which is only
+                // released afterward.
+                buffer.limit(info.offset + offset + size);
+                buffer.position(info.offset + offset);
+                boolean keepGoing;
+                try {
+                    keepGoing = output.write(buffer);
+                } finally {
+                    codec.releaseOutputBuffer(index, false);
+                }
+                if (!keepGoing) {
+                    stopped = true;
+                    done = true;
+                    return;
+                }
+                numOutputSamples += size / (2 * channels);
+            } else {
+                codec.releaseOutputBuffer(index, false);
             }
             if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                    || (decodedBytes.position() / (2 * channels)) >= expectedNumSamples) {
+                    || bufferEnd >= endSample || numOutputSamples >= maxNumSamples) {
                 // We got all the decoded data from the decoder. Stop here.
-                // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
-                // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
-                // won't do that for some files (e.g. with mono AAC files), in which case subsequent
-                // calls to dequeueOutputBuffer may result in the application crashing, without
-                // even an exception being thrown... Hence the second check.
-                // (for mono AAC files, the S3 will actually double each sample, as if the stream
-                // was stereo. The resulting stream is half what it's supposed to be and with a much
-                // lower pitch.)
-                break;
+                // Theoretically the last output buffer should have the
+                // MediaCodec.BUFFER_FLAG_END_OF_STREAM flag. However some phones (e.g. Samsung S3)
+                // won't do that for some files (e.g. with mono AAC files), in which case
+                // subsequent calls to dequeueOutputBuffer may result in the application
+                // crashing, without even an exception being thrown... Hence the other checks.
+                // (for mono AAC files, the S3 will actually double each sample, as if the
+                // stream was stereo. The resulting stream is half what it's supposed to be and
+                // with a much lower pitch.)
+                done = true;
             }
         }
-        numSamples = decodedBytes.position() / (channels * 2);  // One sample = 2 bytes.
-        decodedBytes.rewind();
-        decodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        this.decodedSamples = decodedBytes.asShortBuffer();
-        avgBitRate = (int)((fileSize * 8) * ((float) sampleRate / numSamples) / 1000);
 
-        extractor.release();
-        extractor = null;
-        codec.stop();
-        codec.release();
-        codec = null;
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    // Decodes one range of the track in a background thread, with its own extractor and codec,
+    // straight into its slot of the sample store of the whole file, which starts at offset. See
+    // decodeRanges().
+    private class RangeDecoder extends Thread implements SampleOutput {
+        private int trackIndex;
+        private long startUs;
+        private long endUs;
+        private long maxNumSamples;
+        private MappedSampleStore store;
+        private long offset;  // position of the slot in store, in bytes.
+        private long numBytesWritten = 0;  // number of bytes written in the slot so far.
+        private volatile boolean cancelled;
+        private Exception error;  // set if the range could not be decoded.
 
-        // Temporary hack to make it work with the old version.
-        numFrames = numSamples / getSamplesPerFrame();
-        if (numSamples % getSamplesPerFrame() != 0){
-            numFrames++;
+        RangeDecoder(int trackIndex, long startUs, long endUs, long maxNumSamples,
+                MappedSampleStore store, long offset) {
+            this.trackIndex = trackIndex;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.maxNumSamples = maxNumSamples;
+            this.store = store;
+            this.offset = offset;
+        }
+
+        public void run() {
+            MediaExtractor extractor = null;
+            try {
+                extractor = new MediaExtractor();
+                extractor.setDataSource(inputFile.getPath());
+                extractor.selectTrack(trackIndex);
+                extractor.seekTo(Math.max(0, startUs - DECODE_PREROLL_US),
+                        MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                decodeTrack(extractor, extractor.getTrackFormat(trackIndex), startUs, endUs,
+                        maxNumSamples, true, this);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                if (extractor != null) {
+                    extractor.release();
+                }
+            }
+        }
+
+        public boolean onInputRead(int size) {
+            decodeSizeRead.addAndGet(size);
+            return !cancelled;
+        }
+
+        public boolean write(ByteBuffer samples) throws IOException {
+            int numBytes = samples.remaining();
+            store.write(samples, offset + numBytesWritten);
+            numBytesWritten += numBytes;
+            return true;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    // Load the decoded samples and envelope from the cache, without decoding the file.
+    // Return false if the file is not in the cache.
+    private boolean ReadCachedFile(PcmCache cache) {
+        PcmCache.Entry entry = cache.get(inputFile);
+        if (entry == null) {
+            return false;
         }
-        frameGains = new int[numFrames];
+        sampleRate = entry.sampleRate;
+        channels = entry.channels;
+        avgBitRate = entry.avgBitRate;
+        envelope = entry.envelope;
+        numFrames = envelope.getNumBlocks();
+        expectedNumFrames = numFrames;
+        numSamples = entry.numSamples;
+        samples = entry.samples;
+        setFrameLensAndOffsets();
+        if (progressListener != null) {
+            progressListener.reportProgress(1.0);
+        }
+        return true;
+    }
+
+    private void setFrameLensAndOffsets() {
+        // Temporary hack to make it work with the old version.
         frameLens = new int[numFrames];
         frameOffsets = new int[numFrames];
-        int j;
-        int gain, value;
         int frameLens = (int)((1000 * avgBitRate / 8) *
                 ((float)getSamplesPerFrame() / sampleRate));
-        for (i=0; i< numFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                value = 0;
-                for (int k = 0; k< channels; k++) {
-                    if (this.decodedSamples.remaining() > 0) {
-                        value += java.lang.Math.abs(this.decodedSamples.get());
-                    }
-                }
-                value /= channels;
-                if (gain < value) {
-                    gain = value;
-                }
-            }
-            frameGains[i] = (int)Math.sqrt(gain);  // here gain = sqrt(max value of 1st channel)...
+        for (int i=0; i< numFrames; i++){
             this.frameLens[i] = frameLens;  // totally not accurate...
             frameOffsets[i] = (int)(i * (1000 * avgBitRate / 8) *  //  = i * frameLens
                     ((float)getSamplesPerFrame() / sampleRate));
         }
-        this.decodedSamples.rewind();
-        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
     }
 
     private void RecordAudio() {
@@ -420,302 +1216,568 @@ public class SoundFile {
                 minBufferSize
                 );
 
-        // Allocate memory for 20 seconds first. Reallocate later if more is needed.
-        decodedBytes = ByteBuffer.allocate(20 * sampleRate * 2);
-        decodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        decodedSamples = decodedBytes.asShortBuffer();
+        // The samples are stored in 1MB chunks (~12sec), allocated as the recording goes.
+        ChunkedSampleBuffer samples = new ChunkedSampleBuffer();
+        this.samples = samples;
+        // The envelope is computed as the samples are recorded.
+        envelopeCalculator = new EnvelopeCalculator(channels, getSamplesPerFrame(), 0);
+        long numRecorded = 0;
         audioRecord.startRecording();
         while (true) {
-            // check if decodedSamples can contain 1024 additional samples.
-            if (decodedSamples.remaining() < 1024) {
-                // Try to allocate memory for 10 additional seconds.
-                int newCapacity = decodedBytes.capacity() + 10 * sampleRate * 2;
-                ByteBuffer newDecodedBytes = null;
-                try {
-                    newDecodedBytes = ByteBuffer.allocate(newCapacity);
-                } catch (OutOfMemoryError oome) {
-                    break;
-                }
-                int position = decodedSamples.position();
-                decodedBytes.rewind();
-                newDecodedBytes.put(decodedBytes);
-                decodedBytes = newDecodedBytes;
-                decodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-                decodedBytes.rewind();
-                decodedSamples = decodedBytes.asShortBuffer();
-                decodedSamples.position(position);
-            }
             // TODO(nfaralli): maybe use the read method that takes a direct ByteBuffer argument.
             audioRecord.read(buffer, 0, buffer.length);
-            decodedSamples.put(buffer);
+            try {
+                samples.append(buffer, 0, buffer.length);
+            } catch (OutOfMemoryError oome) {
+                // Keep the samples which could be stored.
+                envelopeCalculator.add(buffer, 0, (int)(samples.size() / 2 - numRecorded));
+                break;
+            }
+            envelopeCalculator.add(buffer, 0, buffer.length);
+            numRecorded += buffer.length;
             // Let the progress listener know how many seconds have been recorded.
             // The returned value tells us if we should keep recording or stop.
-            if (!progressListener.reportProgress(
-                    (float)(decodedSamples.position()) / sampleRate)) {
+            if (!progressListener.reportProgress((double)(numRecorded) / sampleRate)) {
                 break;
             }
         }
         audioRecord.stop();
         audioRecord.release();
-        numSamples = decodedSamples.position();
-        decodedSamples.rewind();
-        decodedBytes.rewind();
+        numSamples = samples.size() / 2;
         avgBitRate = sampleRate * 16 / 1000;
 
-        // Temporary hack to make it work with the old version.
-        numFrames = numSamples / getSamplesPerFrame();
-        if (numSamples % getSamplesPerFrame() != 0){
-            numFrames++;
-        }
-        frameGains = new int[numFrames];
+        finishEnvelope();
         frameLens = null;  // not needed for recorded audio
         frameOffsets = null;  // not needed for recorded audio
-        int i, j;
-        int gain, value;
-        for (i=0; i< numFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                if (decodedSamples.remaining() > 0) {
-                    value = java.lang.Math.abs(decodedSamples.get());
-                } else {
-                    value = 0;
-                }
-                if (gain < value) {
-                    gain = value;
-                }
-            }
-            frameGains[i] = (int)Math.sqrt(gain);  // here gain = sqrt(max value of 1st channel)...
-        }
-        decodedSamples.rewind();
         // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
     }
 
+    // Update the envelope with the 16 bits little endian samples contained in buffer, between
+    // its position and its limit (which are left unchanged). numFrames is updated as soon as the
+    // frames are complete.
+    private void updateEnvelope(ByteBuffer buffer) {
+        envelopeCalculator.add(buffer);
+        envelope = envelopeCalculator.getEnvelope();  // must be replaced before numFrames.
+        numFrames = envelopeCalculator.getNumFrames();
+    }
+
+    // Add the last, incomplete, frame (if any) once all the samples have been decoded.
+    private void finishEnvelope() {
+        envelopeCalculator.finish();
+        envelope = envelopeCalculator.getEnvelope();
+        numFrames = envelopeCalculator.getNumFrames();
+        expectedNumFrames = numFrames;
+    }
+
     // should be removed in the near future...
     public void WriteFile(File outputFile, int startFrame, int numFrames) throws IOException {
-        float startTime = (float)startFrame * getSamplesPerFrame() / sampleRate;
-        float endTime = (float)(startFrame + numFrames) * getSamplesPerFrame() / sampleRate;
-        WriteFile(outputFile, startTime, endTime);
+        writeAACFile(outputFile, (long)startFrame * getSamplesPerFrame(),
+                (long)numFrames * getSamplesPerFrame());
+    }
+
+    // Same as WriteFile(outputFile, startFrame, numFrames), reporting the progress of the encoding
+    // to progressListener. If progressListener returns false, the encoding stops, outputFile is
+    // deleted and an InterruptedIOException is thrown.
+    public void WriteFile(File outputFile, int startFrame, int numFrames,
+            ProgressListener progressListener) throws IOException {
+        writeAACFile(outputFile, (long)startFrame * getSamplesPerFrame(),
+                (long)numFrames * getSamplesPerFrame(), progressListener);
     }
 
     public void WriteFile(File outputFile, float startTime, float endTime) throws IOException {
-        int startOffset = (int)(startTime * sampleRate) * 2 * channels;
-        int numSamples = (int)((endTime - startTime) * sampleRate);
-        // Some devices have problems reading mono AAC files (e.g. Samsung S3). Making it stereo.
-        int numChannels = (channels == 1) ? 2 : channels;
+        WriteFile(outputFile, startTime, endTime, null);
+    }
+
+    // Same as above, reporting the progress to progressListener (see WriteFile(outputFile,
+    // startFrame, numFrames, progressListener)).
+    public void WriteFile(File outputFile, float startTime, float endTime,
+            ProgressListener progressListener) throws IOException {
+        writeAACFile(outputFile, (long)((double)startTime * sampleRate),
+                (long)(((double)endTime - startTime) * sampleRate), progressListener);
+    }
+
+    // Encode numSamples samples (per channel), starting at startSample, in an AAC file.
+    private void writeAACFile(File outputFile, long startSample, long numSamples)
+            throws IOException {
+        writeAACFile(outputFile, startSample, numSamples, null);
+    }
+
+    private void writeAACFile(File outputFile, long startSample, long numSamples,
+            ProgressListener progressListener) throws IOException {
+        SampleCursor cursor = getSampleCursor();
+        cursor.seek(startSample);
+        encodeAACFile(outputFile, cursor, numSamples, progressListener);
+    }
+
+    // Encode numSamples samples (per channel) read from reader in an AAC file. Missing samples
+    // are replaced by 0s.
+    void encodeAACFile(File outputFile, SampleReader reader, long numSamples)
+            throws IOException {
+        encodeAACFile(outputFile, reader, numSamples, null);
+    }
+
+    // Same as above, reporting the progress to progressListener (if not null), which can cancel
+    // the encoding (see WriteFile()).
+    void encodeAACFile(File outputFile, SampleReader reader, long numSamples,
+            ProgressListener progressListener) throws IOException {
+        // Some devices have problems reading mono AAC files (e.g. Samsung S3). Making it stereo
+        // there (see setMonoEncoding()).
+        int numChannels = (channels == 1 && monoEncoding == MONO_ENCODING_STEREO) ? 2 : channels;
 
         String mimeType = "audio/mp4a-latm";
         int bitrate = 64000 * numChannels;  // rule of thumb for a good quality: 64kbps per channel.
-        MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
         MediaFormat format = MediaFormat.createAudioFormat(mimeType, sampleRate, numChannels);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        codec.start();
 
-        // Get an estimation of the encoded data based on the bitrate. Add 10% to it.
-        int estimatedEncodedSize = (int)((endTime - startTime) * (bitrate / 8) * 1.1);
-        ByteBuffer encodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean done_reading = false;
-        long presentation_time = 0;
-
-        int frame_size = 1024;  // number of samples per frame per channel for an mp4 (AAC) stream.
-        byte buffer[] = new byte[frame_size * numChannels * 2];  // a sample is coded with a short.
-        decodedBytes.position(startOffset);
-        numSamples += (2 * frame_size);  // Adding 2 frames, Cf. priming frames for AAC.
-        int tot_num_frames = 1 + (numSamples / frame_size);  // first AAC frame = 2 bytes
-        if (numSamples % frame_size != 0) {
-            tot_num_frames++;
-        }
-        int[] frame_sizes = new int[tot_num_frames];
-        int num_out_frames = 0;
-        int num_frames=0;
-        int num_samples_left = numSamples;
-        int encodedSamplesSize = 0;  // size of the output buffer containing the encoded samples.
-        byte[] encodedSamples = null;
+        // Number of frames to encode: the samples plus 2 frames (Cf. priming frames for AAC), and
+        // the first frame which only contains the configuration (2 bytes).
+        long numFrames = 1 + (numSamples + 2 * PcmEncoder.FRAME_SIZE + PcmEncoder.FRAME_SIZE - 1) /
+                PcmEncoder.FRAME_SIZE;
+        // The encoded frames are written to the file as they come out of the encoder.
+        MP4FileWriter writer =
+                new MP4FileWriter(outputFile, sampleRate, numChannels, (int)numFrames);
+        PcmEncoder encoder =
+                new PcmEncoder(reader, numChannels, numSamples, writer, progressListener);
+        MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
+        try {
+            runCodec(codec, format, MediaCodec.CONFIGURE_FLAG_ENCODE, encoder);
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        } finally {
+            codec.release();
+        }
+        if (encoder.cancelled) {
+            writer.abort();
+            outputFile.delete();
+            throw new InterruptedIOException("Encoding cancelled");
+        }
+        writer.close(bitrate);
+    }
+
+    // Whether the selections of this file can be written by copying the frames of the input
+    // file as they are, i.e. whether it is an MP3 file or an AAC LC stream (see CopyMP3File() and
+    // CopyAACFile()). Callers may skip preparing an encoded copy of the selection then. The
+    // input file may be opened to find out, the first time this is called.
+    public boolean canCopyFrames() {
+        return (inputFile != null && fileType.equalsIgnoreCase("mp3")) || getAACConfig() != null;
+    }
+
+    // Exact frame index of the input file if it is an MP3 file whose frames match the decoded
+    // samples, null otherwise. Built the first time it is needed, as it walks the frames of the
+    // whole file: opening a file (from the cache in particular) does not need it, only copying
+    // its frames does.
+    private synchronized MP3FrameIndex getMP3Index() {
+        if (mp3IndexScanned || inputFile == null || !fileType.equalsIgnoreCase("mp3")) {
+            return mp3Index;
+        }
+        mp3IndexScanned = true;
+        MP3FrameIndex index = MP3FrameIndex.scan(inputFile);
+        if (index != null && index.getSampleRate() == sampleRate) {
+            mp3Index = index;
+        }
+        return mp3Index;
+    }
+
+    // The 2 bytes AudioSpecificConfig of the input file if it is an AAC LC stream (audio object
+    // type 2), as written by MP4Header, null otherwise. Other profiles (e.g. HE-AAC) need a
+    // different header. Looked up once.
+    private synchronized byte[] getAACConfig() {
+        if (aacConfigChecked || inputFile == null) {
+            return aacConfig;
+        }
+        aacConfigChecked = true;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(inputFile.getPath());
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null ||
+                    !format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm")) {
+                return null;
+            }
+            ByteBuffer csd = format.getByteBuffer("csd-0");
+            if (csd == null || csd.remaining() != 2 ||
+                    ((csd.get(csd.position()) & 0xFF) >> 3) != 2) {
+                return null;
+            }
+            aacConfig = new byte[2];
+            csd.duplicate().get(aacConfig);
+        } catch (IOException e) {
+            Log.e("SoundFile", "getAACConfig() failed to read " + inputFile, e);
+        } finally {
+            extractor.release();
+        }
+        return aacConfig;
+    }
+
+    // Select the first audio track of extractor and return its format, or null if there is none.
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        int numTracks = extractor.getTrackCount();
+        for (int i = 0; i < numTracks; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    // should be removed in the near future...
+    public boolean CopyAACFile(File outputFile, int startFrame, int numFrames) throws IOException {
+        // Exact times, so that frames aligned with the AAC frames are recognized as such.
+        long samplesPerFrame = getSamplesPerFrame();
+        return copyAACFile(outputFile, startFrame * samplesPerFrame * 1000000 / sampleRate,
+                (startFrame + numFrames) * samplesPerFrame * 1000000 / sampleRate);
+    }
+
+    // Write the AAC frames of the input file presented in [startTime, endTime) to outputFile as
+    // they are, without decoding or encoding anything: the cut is lossless and only limited by
+    // the speed of the storage. This is only done when the selection starts and ends on AAC frame
+    // boundaries (1024 samples, as the frames of the editor), since nothing would remove the
+    // samples of the first and last frames outside the selection: no edge frame is re-encoded and
+    // no edit list is written.
+    // Returns false, without creating outputFile, if the input cannot be copied (see
+    // canCopyFrames()) or if the selection is not on frame boundaries; the selection must then be
+    // encoded with WriteFile().
+    public boolean CopyAACFile(File outputFile, float startTime, float endTime)
+            throws IOException {
+        return copyAACFile(outputFile, (long)((double)startTime * 1000000),
+                (long)((double)endTime * 1000000));
+    }
+
+    // Same as above, with the bounds of the selection in microseconds.
+    private boolean copyAACFile(File outputFile, long selectionStartUs, long selectionEndUs)
+            throws IOException {
+        byte[] config = getAACConfig();
+        if (config == null || selectionEndUs <= selectionStartUs) {
+            return false;
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(inputFile.getPath());
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null) {
+                return false;
+            }
+            // The format of the AAC stream, which may differ from the format of the decoded
+            // samples (e.g. some devices decode mono AAC as stereo).
+            int inputSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int inputChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            // Copy the frames starting in [firstUs, lastUs), i.e. the frames whose first half is
+            // in the selection (times are relative to the first sample, which is presented at
+            // startUs for objects created with createRange()).
+            long frameDurationUs = 1024L * 1000000 / inputSampleRate;
+            long firstUs = startUs + selectionStartUs;
+            long lastUs = startUs + selectionEndUs;
+            extractor.seekTo(Math.max(0, firstUs - frameDurationUs / 2),
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            ByteBuffer frame = ByteBuffer.allocate(1 << 16);
+            // The frames are written to the file as they are read.
+            int maxNumFrames = (int)Math.min(Integer.MAX_VALUE - 8,
+                    (lastUs - firstUs) / frameDurationUs + 3);
+            MP4FileWriter writer =
+                    new MP4FileWriter(outputFile, inputSampleRate, inputChannels, maxNumFrames);
+            boolean written = false;
+            try {
+                // the first "frame" is the configuration.
+                writer.writeFrame(ByteBuffer.wrap(config));
+                // Half a sample, to absorb the rounding of the times to microseconds.
+                long toleranceUs = Math.max(1, 500000 / inputSampleRate);
+                if (!copyAACFrames(extractor, frame, writer, firstUs, lastUs, frameDurationUs,
+                        toleranceUs) || writer.getNumFrames() < 2) {
+                    return false;  // Not on frame boundaries, or nothing to copy.
+                }
+                long dataSize = writer.getDataSize() - config.length;
+                int bitrate = (int)(dataSize * 8 * inputSampleRate /
+                        (1024L * (writer.getNumFrames() - 1)));
+                writer.close(bitrate);
+                written = true;
+            } finally {
+                if (!written) {
+                    writer.abort();
+                    outputFile.delete();
+                }
+            }
+            return true;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    // Write the frames of extractor presented in [firstUs - frameDurationUs / 2,
+    // lastUs - frameDurationUs / 2) to writer, using frame as the read buffer. Returns false as
+    // soon as the copied frames turn out not to start at firstUs or not to end at lastUs (or at
+    // the end of the stream, before lastUs), within toleranceUs. See CopyAACFile().
+    private static boolean copyAACFrames(MediaExtractor extractor, ByteBuffer frame,
+            MP4FileWriter writer, long firstUs, long lastUs, long frameDurationUs,
+            long toleranceUs) throws IOException {
+        long halfFrameUs = frameDurationUs / 2;
+        boolean firstSampleData = true;
+        boolean firstFrame = true;
+        long endUs = firstUs;  // where the frames copied so far end.
         while (true) {
-            // Feed the samples to the encoder.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                if (num_samples_left <= 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    inputBuffers[inputBufferIndex].clear();
-                    if (buffer.length > inputBuffers[inputBufferIndex].remaining()) {
-                        // Input buffer is smaller than one frame. This should never happen.
-                        continue;
-                    }
-                    // bufferSize is a hack to create a stereo file from a mono stream.
-                    int bufferSize = (channels == 1) ? (buffer.length / 2) : buffer.length;
-                    if (decodedBytes.remaining() < bufferSize) {
-                        for (int i = decodedBytes.remaining(); i < bufferSize; i++) {
-                            buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                        }
-                        decodedBytes.get(buffer, 0, decodedBytes.remaining());
-                    } else {
-                        decodedBytes.get(buffer, 0, bufferSize);
-                    }
-                    if (channels == 1) {
-                        for (int i=bufferSize - 1; i >= 1; i -= 2) {
-                            buffer[2*i + 1] = buffer[i];
-                            buffer[2*i] = buffer[i-1];
-                            buffer[2*i - 1] = buffer[2*i + 1];
-                            buffer[2*i - 2] = buffer[2*i];
-                        }
-                    }
-                    num_samples_left -= frame_size;
-                    inputBuffers[inputBufferIndex].put(buffer);
-                    presentation_time = (long) (((num_frames++) * frame_size * 1e6) / sampleRate);
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, buffer.length, presentation_time, 0);
-                }
-            }
-
-            // Get the encoded samples from the encoder.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0 && info.presentationTimeUs >=0) {
-                if (num_out_frames < frame_sizes.length) {
-                    frame_sizes[num_out_frames++] = info.size;
-                }
-                if (encodedSamplesSize < info.size) {
-                    encodedSamplesSize = info.size;
-                    encodedSamples = new byte[encodedSamplesSize];
-                }
-                outputBuffers[outputBufferIndex].get(encodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-                if (encodedBytes.remaining() < info.size) {  // Hopefully this should not happen.
-                    estimatedEncodedSize = (int)(estimatedEncodedSize * 1.2);  // Add 20%.
-                    ByteBuffer newEncodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-                    int position = encodedBytes.position();
-                    encodedBytes.rewind();
-                    newEncodedBytes.put(encodedBytes);
-                    encodedBytes = newEncodedBytes;
-                    encodedBytes.position(position);
-                }
-                encodedBytes.put(encodedSamples, 0, info.size);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Subsequent data will conform to new format.
-                // We could check that codec.getOutputFormat(), which is the new output format,
-                // is what we expect.
+            int size = extractor.readSampleData(frame, 0);
+            long timeUs = extractor.getSampleTime();
+            if (size < 0) {
+                // End of the stream: the selection may extend past it.
+                return !firstFrame && endUs <= lastUs + toleranceUs;
             }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                // We got all the encoded data from the encoder.
-                break;
+            if (timeUs >= lastUs - halfFrameUs) {
+                return !firstFrame && Math.abs(timeUs - lastUs) <= toleranceUs;
+            }
+            // Some files start with the configuration itself, already written (see
+            // TrackDecoder).
+            boolean isConfig = firstSampleData && size == 2;
+            firstSampleData = false;
+            if (timeUs >= firstUs - halfFrameUs && !isConfig) {
+                if (firstFrame && Math.abs(timeUs - firstUs) > toleranceUs) {
+                    return false;
+                }
+                firstFrame = false;
+                frame.limit(size);
+                frame.position(0);
+                if (!writer.writeFrame(frame)) {
+                    return false;  // more frames than the selection can hold.
+                }
+                frame.clear();
+                endUs = timeUs + frameDurationUs;
             }
+            extractor.advance();
+        }
+    }
+
+    // should be removed in the near future...
+    public boolean CopyMP3File(File outputFile, int startFrame, int numFrames) throws IOException {
+        float startTime = (float)startFrame * getSamplesPerFrame() / sampleRate;
+        float endTime = (float)(startFrame + numFrames) * getSamplesPerFrame() / sampleRate;
+        return CopyMP3File(outputFile, startTime, endTime);
+    }
+
+    // Write the MP3 frames of the input file containing [startTime, endTime) to outputFile as
+    // they are, behind a new Xing header frame, without decoding or encoding anything.
+    // The first frame may use the bit reservoir of the frames preceding it, which are then copied
+    // too, as is one more frame when needed to cover the decoder delay. The samples of the copied
+    // frames which are not in [startTime, endTime) are marked as encoder delay and padding in the
+    // LAME tag (see XingHeader), so that gapless players play the exact selection.
+    // Returns false, without creating outputFile, if the input is not an MP3 file, or if the
+    // frames of the bit reservoir make the delay too long for the LAME tag; the selection must
+    // then be encoded. outputFile is deleted if the copy fails.
+    public boolean CopyMP3File(File outputFile, float startTime, float endTime)
+            throws IOException {
+        MP3FrameIndex index = getMP3Index();
+        if (index == null) {
+            return false;
+        }
+        int samplesPerFrame = index.getSamplesPerFrame();
+        long startSample = usToSamples(startUs) + (long)((double)startTime * sampleRate);
+        long endSample = usToSamples(startUs) + (long)((double)endTime * sampleRate);
+        int firstFrame = index.getFrameForSample(startSample);
+        int lastFrame = index.getFrameForSample(endSample - 1);
+        if (endSample <= startSample || lastFrame < firstFrame) {
+            return false;
         }
-        int encoded_size = encodedBytes.position();
-        encodedBytes.rewind();
-        codec.stop();
-        codec.release();
-        codec = null;
 
-        // Write the encoded stream to the file, 4kB at a time.
-        buffer = new byte[4096];
+        RandomAccessFile input = new RandomAccessFile(inputFile, "r");
+        FileOutputStream outputStream = null;
         try {
-            FileOutputStream outputStream = new FileOutputStream(outputFile);
-            outputStream.write(
-                    MP4Header.getMP4Header(sampleRate, numChannels, frame_sizes, bitrate));
-            while (encoded_size - encodedBytes.position() > buffer.length) {
-                encodedBytes.get(buffer);
-                outputStream.write(buffer);
-            }
-            int remaining = encoded_size - encodedBytes.position();
-            if (remaining > 0) {
-                encodedBytes.get(buffer, 0, remaining);
-                outputStream.write(buffer, 0, remaining);
+            FileChannel inputChannel = input.getChannel();
+            firstFrame -= index.getReservoirFrames(inputChannel, firstFrame);
+            if (firstFrame > 0 &&
+                    startSample - (long)firstFrame * samplesPerFrame < XingHeader.DECODER_DELAY) {
+                // The players always skip the decoder delay: copy one more frame for it.
+                firstFrame--;
+            }
+            long skip = startSample - (long)firstFrame * samplesPerFrame;
+            long drop = Math.max(0, (long)(lastFrame + 1) * samplesPerFrame - endSample);
+            if (skip > XingHeader.MAX_SKIP || drop > XingHeader.MAX_DROP) {
+                // Too many frames in the bit reservoir for the gapless tag: dropping some of them
+                // would make the first frame of the selection undecodable, so re-encode instead.
+                return false;
+            }
+            byte[] xing = XingHeader.getXingHeader(index, firstFrame, lastFrame, (int)skip,
+                    (int)drop);
+
+            // Copy the frames from file to file, without going through the Java heap.
+            outputStream = new FileOutputStream(outputFile);
+            FileChannel outputChannel = outputStream.getChannel();
+            ByteBuffer header = ByteBuffer.wrap(xing);
+            while (header.hasRemaining()) {
+                outputChannel.write(header);
+            }
+            long position = index.getFrameOffset(firstFrame);
+            long end = index.getFrameOffset(lastFrame) + index.getFrameLength(lastFrame);
+            while (position < end) {
+                long count = inputChannel.transferTo(position, end - position, outputChannel);
+                if (count <= 0) {
+                    throw new IOException("Failed to copy the frames of " + inputFile);
+                }
+                position += count;
             }
             outputStream.close();
-        } catch (IOException e) {
-            Log.e("SoundFile", "WriteFile() failed to create the .m4a file\n" + getStackTrace(e));
+            outputStream = null;
+            return true;
+        } finally {
+            if (outputStream != null) {
+                // The copy failed: do not leave a truncated file behind.
+                IOUtils.closeQuietly(outputStream);
+                outputFile.delete();
+            }
+            IOUtils.closeQuietly(input);
         }
     }
 
-    // Method used to swap the left and right channels (needed for stereo WAV files).
-    // buffer contains the PCM data: {sample 1 right, sample 1 left, sample 2 right, etc.}
-    // The size of a sample is assumed to be 16 bits (for a single channel).
-    // When done, buffer will contain {sample 1 left, sample 1 right, sample 2 left, etc.}
-    private void swapLeftRightChannels(byte[] buffer) {
-        byte left[] = new byte[2];
-        byte right[] = new byte[2];
-        if (buffer.length % 4 != 0) {  // 2 channels, 2 bytes per sample (for one channel).
-            // Invalid buffer size.
-            return;
+    // Feeds the samples read from a cursor to an AAC encoder, one frame at a time, and collects
+    // the encoded frames. See WriteFile().
+    private class PcmEncoder implements CodecClient {
+        private static final int FRAME_SIZE = 1024;  // samples per frame per channel for AAC.
+
+        private SampleReader reader;
+        private short[] frame;  // one frame of samples, all the channels of the encoded stream.
+        private boolean upmix;  // whether mono samples are upmixed to stereo.
+        private long numSamplesLeft;
+        private int numFrames = 0;
+        private boolean doneReading = false;
+        private boolean done = false;
+        private MP4FileWriter writer;
+        private ProgressListener progressListener;  // may be null.
+        private long numSamples;
+        volatile boolean cancelled = false;  // set if progressListener stopped the encoding.
+
+        // numChannels is the number of channels of the encoded stream: either the number of
+        // channels of the samples, or 2 to upmix mono samples to stereo.
+        PcmEncoder(SampleReader reader, int numChannels, long numSamples, MP4FileWriter writer,
+                ProgressListener progressListener) {
+            this.reader = reader;
+            frame = new short[FRAME_SIZE * numChannels];
+            upmix = numChannels != reader.getChannels();
+            numSamples += (2 * FRAME_SIZE);  // Adding 2 frames, Cf. priming frames for AAC.
+            numSamplesLeft = numSamples;
+            this.numSamples = numSamples;
+            this.writer = writer;
+            this.progressListener = progressListener;
+        }
+
+        public void queueInput(MediaCodec codec, int index, ByteBuffer inputBuffer) {
+            if (doneReading) {
+                return;
+            }
+            // Feed the samples to the encoder.
+            if (progressListener != null && !progressListener.reportProgress(
+                    (double)(numSamples - numSamplesLeft) / numSamples)) {
+                // Stop feeding samples: the encoder only has to flush what it has.
+                cancelled = true;
+                numSamplesLeft = 0;
+            }
+            if (numSamplesLeft <= 0) {
+                // All samples have been read.
+                codec.queueInputBuffer(index, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                doneReading = true;
+                return;
+            }
+            inputBuffer.clear();
+            if (2 * frame.length > inputBuffer.remaining()) {
+                // Input buffer is smaller than one frame. This should never happen.
+                return;
+            }
+            if (upmix) {
+                // Mono to stereo: the mono samples are read in bulk into the second half of the
+                // frame, and each one is then copied to both channels in a single pass, in place
+                // (sample i is read before the stereo samples 2 * i and 2 * i + 1 overwrite it).
+                int numRead = reader.read(frame, FRAME_SIZE, FRAME_SIZE);
+                Arrays.fill(frame, FRAME_SIZE + numRead, frame.length, (short)0);  // full frame.
+                for (int i = 0; i < FRAME_SIZE; i++) {
+                    short sample = frame[FRAME_SIZE + i];
+                    frame[2 * i] = sample;
+                    frame[2 * i + 1] = sample;
+                }
+            } else {
+                int numRead = reader.read(frame, 0, frame.length);
+                Arrays.fill(frame, numRead, frame.length, (short)0);  // pad to make a full frame.
+            }
+            numSamplesLeft -= FRAME_SIZE;
+            inputBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            inputBuffer.asShortBuffer().put(frame);
+            long presentation_time =
+                    (long) (((numFrames++) * (double) FRAME_SIZE * 1e6) / sampleRate);
+            codec.queueInputBuffer(index, 0, 2 * frame.length, presentation_time, 0);
         }
-        for (int offset = 0; offset < buffer.length; offset += 4) {
-            left[0] = buffer[offset];
-            left[1] = buffer[offset + 1];
-            right[0] = buffer[offset + 2];
-            right[1] = buffer[offset + 3];
-            buffer[offset] = right[0];
-            buffer[offset + 1] = right[1];
-            buffer[offset + 2] = left[0];
-            buffer[offset + 3] = left[1];
+
+        public void processOutput(MediaCodec codec, int index, ByteBuffer outputBuffer,
+                MediaCodec.BufferInfo info) throws IOException {
+            // Write the encoded samples straight from the encoder buffer to the file.
+            if (info.size > 0 && info.presentationTimeUs >=0) {
+                outputBuffer.limit(info.offset + info.size);
+                outputBuffer.position(info.offset);
+                try {
+                    writer.writeFrame(outputBuffer);  // Extra frames, if any, are dropped.
+                } finally {
+                    codec.releaseOutputBuffer(index, false);
+                }
+            } else {
+                codec.releaseOutputBuffer(index, false);
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                // We got all the encoded data from the encoder.
+                done = true;
+            }
+        }
+
+        public boolean isDone() {
+            return done;
         }
     }
 
     // should be removed in the near future...
     public void WriteWAVFile(File outputFile, int startFrame, int numFrames)
             throws java.io.IOException {
-        float startTime = (float)startFrame * getSamplesPerFrame() / sampleRate;
-        float endTime = (float)(startFrame + numFrames) * getSamplesPerFrame() / sampleRate;
-        WriteWAVFile(outputFile, startTime, endTime);
+        writeWAVFile(outputFile, (long)startFrame * getSamplesPerFrame(),
+                (long)numFrames * getSamplesPerFrame());
     }
 
     public void WriteWAVFile(File outputFile, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int)(startTime * sampleRate) * 2 * channels;
-        int numSamples = (int)((endTime - startTime) * sampleRate);
-
-        // Start by writing the RIFF header.
-        FileOutputStream outputStream = new FileOutputStream(outputFile);
-        outputStream.write(WAVHeader.getWAVHeader(sampleRate, channels, numSamples));
-
-        // Write the samples to the file, 1024 at a time.
-        byte buffer[] = new byte[1024 * channels * 2];  // Each sample is coded with a short.
-        decodedBytes.position(startOffset);
-        int numBytesLeft = numSamples * channels * 2;
-        while (numBytesLeft >= buffer.length) {
-            if (decodedBytes.remaining() < buffer.length) {
-                // This should not happen.
-                for (int i = decodedBytes.remaining(); i < buffer.length; i++) {
-                    buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                }
-                decodedBytes.get(buffer, 0, decodedBytes.remaining());
-            } else {
-                decodedBytes.get(buffer);
-            }
-            if (channels == 2) {
-                swapLeftRightChannels(buffer);
-            }
-            outputStream.write(buffer);
-            numBytesLeft -= buffer.length;
-        }
-        if (numBytesLeft > 0) {
-            if (decodedBytes.remaining() < numBytesLeft) {
-                // This should not happen.
-                for (int i = decodedBytes.remaining(); i < numBytesLeft; i++) {
-                    buffer[i] = 0;  // pad with extra 0s to make a full frame.
+        writeWAVFile(outputFile, (long)((double)startTime * sampleRate),
+                (long)(((double)endTime - startTime) * sampleRate));
+    }
+
+    // Write numSamples samples (per channel), starting at startSample, in a WAV file.
+    private void writeWAVFile(File outputFile, long startSample, long numSamples)
+            throws java.io.IOException {
+        WAVFileWriter writer = new WAVFileWriter(outputFile, sampleRate, channels, numSamples);
+        try {
+            long numBytes = numSamples * channels * 2;  // Each sample is coded with a short.
+            if (channels != 2 && wavDataOffset >= 0) {
+                // The samples are mapped from a WAV file, in the right order: copy them from file
+                // to file, without reading them.
+                numBytes = Math.max(0,
+                        Math.min(numBytes, (this.numSamples - startSample) * channels * 2));
+                RandomAccessFile input = new RandomAccessFile(inputFile, "r");
+                try {
+                    writer.transferFrom(input.getChannel(),
+                            wavDataOffset + startSample * channels * 2, numBytes);
+                } finally {
+                    input.close();
                 }
-                decodedBytes.get(buffer, 0, decodedBytes.remaining());
             } else {
-                decodedBytes.get(buffer, 0, numBytesLeft);
-            }
-            if (channels == 2) {
-                swapLeftRightChannels(buffer);
+                // Write the samples straight from the views of the sample store, 1MB at a time.
+                SampleCursor cursor = getSampleCursor();
+                cursor.seek(startSample);
+                ByteBuffer view;
+                while (writer.getNumBytesWritten() < numBytes && (view = cursor.nextBuffer(
+                        (int)Math.min(1 << 20, numBytes - writer.getNumBytesWritten()))) != null) {
+                    writer.write(view);
+                }
             }
-            outputStream.write(buffer, 0, numBytesLeft);
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
         }
-        outputStream.close();
+        writer.close();
     }
 
-    // Debugging method dumping all the samples in decodedSamples in a TSV file.
+    // Debugging method dumping all the samples in a TSV file.
     // Each row describes one sample and has the following format:
     // "<presentation time in seconds>\t<channel 1>\t...\t<channel N>\n"
     // File will be written on the SDCard under media/audio/debug/
@@ -741,15 +1803,17 @@ public class SoundFile {
         // Start dumping the samples.
         BufferedWriter writer = null;
         float presentationTime = 0;
-        decodedSamples.rewind();
+        SampleCursor cursor = getSampleCursor();
+        short[] sample = new short[channels];
         String row;
         try {
             writer = new BufferedWriter(new FileWriter(outFile));
-            for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
-                presentationTime = (float)(sampleIndex) / sampleRate;
+            for (long sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                presentationTime = (float)((double)sampleIndex / sampleRate);
                 row = Float.toString(presentationTime);
+                cursor.read(sample, 0, channels);
                 for (int channelIndex = 0; channelIndex < channels; channelIndex++) {
-                    row += "\t" + decodedSamples.get();
+                    row += "\t" + sample[channelIndex];
                 }
                 row += "\n";
                 writer.write(row);
@@ -757,13 +1821,12 @@ public class SoundFile {
         } catch (IOException e) {
             Log.w("SoundFile", "DumpSamples() failed to create the sample TSV file\n" + getStackTrace(e));
         }
-        // We are done here. Close the file and rewind the buffer.
+        // We are done here. Close the file.
         try {
             writer.close();
         } catch (Exception e) {
             Log.w("SoundFile", "DumpSamples() failed to close sample TSV file\n" + getStackTrace(e));
         }
-        decodedSamples.rewind();
     }
 
     // Helper method (samples will be dumped in media/audio/debug/samples.tsv).
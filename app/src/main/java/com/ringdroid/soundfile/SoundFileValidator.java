@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Checks the structure of a file written by SoundFile (WriteFile(), WriteWAVFile(),
+// CopyAACFile() or CopyMP3File()) without decoding it:
+//  - .m4a: the atoms are walked, and the sample table (stsz) and chunk offsets (stco or co64)
+//    must exactly describe the content of the mdat atom, which must fit in the file.
+//  - .wav (RIFF/WAVE or RF64) and .w64: the file and data sizes of the header must match the
+//    size of the file, and the samples must be 16 bits PCM.
+//  - .mp3: the frames must follow each other up to the end of the file.
+// This only reads the headers, so it is much faster than loading the file again with
+// SoundFile.create(), while still catching truncated or inconsistent files.
+public class SoundFileValidator {
+    // The moov atom is read in memory. Its size is mostly the sample table: 4 bytes per frame.
+    private static final long MAX_MOOV_SIZE = 64L << 20;
+
+    private static final int FTYP = fourCC("ftyp");
+    private static final int MOOV = fourCC("moov");
+    private static final int MDAT = fourCC("mdat");
+    private static final int TRAK = fourCC("trak");
+    private static final int MDIA = fourCC("mdia");
+    private static final int MINF = fourCC("minf");
+    private static final int STBL = fourCC("stbl");
+    private static final int STSZ = fourCC("stsz");
+    private static final int STCO = fourCC("stco");
+    private static final int CO64 = fourCC("co64");
+
+    // Values found in the sample table of an .m4a file.
+    private long numSamples = -1;  // number of AAC frames.
+    private long samplesSize;  // total size of the frames.
+    private long[] chunkOffsets;
+
+    private SoundFileValidator() {
+    }
+
+    // Check file, according to its extension.
+    // Throws an IOException describing the problem if the file is not valid.
+    public static void validate(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".m4a")) {
+            validateMP4(file);
+        } else if (name.endsWith(".wav") || name.endsWith(".w64")) {
+            validateWAV(file);
+        } else if (name.endsWith(".mp3")) {
+            validateMP3(file);
+        } else {
+            throw new IOException("Unsupported file type: " + file.getName());
+        }
+    }
+
+    // Check a file written with MP4Header.
+    public static void validateMP4(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            new SoundFileValidator().checkMP4(randomAccessFile.getChannel());
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+    }
+
+    // Check a file written with WAVHeader, in any of its formats.
+    public static void validateWAV(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            checkWAV(randomAccessFile.getChannel());
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+    }
+
+    // Check a file made of MPEG audio frames.
+    public static void validateMP3(File file) throws IOException {
+        MP3FrameIndex index = MP3FrameIndex.scan(file);
+        if (index == null || index.getNumFrames() == 0) {
+            throw new IOException("No MPEG audio frame found");
+        }
+        if (index.getDataEnd() != file.length()) {
+            throw new IOException("Frames end at " + index.getDataEnd() + " in a file of " +
+                    file.length() + " bytes");
+        }
+    }
+
+    private void checkMP4(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(16);  // big endian.
+        long position = 0;
+        long mdatStart = -1;  // offset of the content of the mdat atom.
+        long mdatEnd = -1;
+        boolean moovFound = false;
+        while (position + 8 <= fileSize) {
+            read(channel, header, position, 8);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {  // 64 bits size.
+                read(channel, header, position + 8, 8);
+                size = header.getLong(0);
+                headerSize = 16;
+            } else if (size == 0) {  // last atom, up to the end of the file.
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                throw new IOException("Invalid size " + size + " for atom " + typeString(type) +
+                        " at " + position + " (file size: " + fileSize + ")");
+            }
+            if (position == 0 && type != FTYP) {
+                throw new IOException("Missing ftyp atom");
+            }
+            if (type == MOOV) {
+                if (size > MAX_MOOV_SIZE) {
+                    throw new IOException("moov atom too large: " + size);
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int)(size - headerSize));
+                read(channel, moov, position + headerSize, moov.capacity());
+                parseContainer(moov, 0, moov.limit());
+                moovFound = true;
+            } else if (type == MDAT) {
+                mdatStart = position + headerSize;
+                mdatEnd = position + size;
+            }
+            position += size;
+        }
+        if (!moovFound || mdatStart < 0) {
+            throw new IOException("Missing " + (moovFound ? "mdat" : "moov") + " atom");
+        }
+        if (numSamples <= 0 || chunkOffsets == null || chunkOffsets.length == 0) {
+            throw new IOException("Missing or empty sample table");
+        }
+        if (samplesSize != mdatEnd - mdatStart) {
+            throw new IOException("Sample sizes total " + samplesSize + " bytes, mdat contains " +
+                    (mdatEnd - mdatStart) + " bytes");
+        }
+        // The chunks are stored in order in the mdat atom, the first one at its beginning.
+        if (chunkOffsets[0] != mdatStart) {
+            throw new IOException("First chunk at " + chunkOffsets[0] + ", mdat data at " +
+                    mdatStart);
+        }
+        for (int i = 1; i < chunkOffsets.length; i++) {
+            if (chunkOffsets[i] <= chunkOffsets[i - 1] || chunkOffsets[i] >= mdatEnd) {
+                throw new IOException("Invalid offset " + chunkOffsets[i] + " for chunk " + i);
+            }
+        }
+    }
+
+    // Walk the atoms of buffer between start and end, down to the sample table.
+    private void parseContainer(ByteBuffer buffer, int start, int end) throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            long size = buffer.getInt(position) & 0xFFFFFFFFL;
+            int type = buffer.getInt(position + 4);
+            if (size < 8 || position + size > end) {
+                throw new IOException("Invalid size " + size + " for atom " + typeString(type));
+            }
+            int contentStart = position + 8;
+            int contentEnd = (int)(position + size);
+            if (type == TRAK || type == MDIA || type == MINF || type == STBL) {
+                parseContainer(buffer, contentStart, contentEnd);
+            } else if (type == STSZ) {
+                parseSampleSizes(buffer, contentStart, contentEnd);
+            } else if (type == STCO || type == CO64) {
+                parseChunkOffsets(buffer, contentStart, contentEnd, type == CO64);
+            }
+            position = contentEnd;
+        }
+    }
+
+    private void parseSampleSizes(ByteBuffer buffer, int start, int end) throws IOException {
+        if (end - start < 12) {
+            throw new IOException("Invalid stsz atom");
+        }
+        long sampleSize = buffer.getInt(start + 4) & 0xFFFFFFFFL;  // after version and flags.
+        numSamples = buffer.getInt(start + 8) & 0xFFFFFFFFL;
+        if (sampleSize != 0) {  // all the samples have the same size.
+            samplesSize = sampleSize * numSamples;
+            return;
+        }
+        if (end - start - 12 < numSamples * 4) {
+            throw new IOException("stsz atom too small for " + numSamples + " samples");
+        }
+        samplesSize = 0;
+        for (int i = 0; i < numSamples; i++) {
+            samplesSize += buffer.getInt(start + 12 + 4 * i) & 0xFFFFFFFFL;
+        }
+    }
+
+    private void parseChunkOffsets(ByteBuffer buffer, int start, int end, boolean is64)
+            throws IOException {
+        int entrySize = is64 ? 8 : 4;
+        if (end - start < 8) {
+            throw new IOException("Invalid chunk offset atom");
+        }
+        long numChunks = buffer.getInt(start + 4) & 0xFFFFFFFFL;  // after version and flags.
+        if (end - start - 8 < numChunks * entrySize) {
+            throw new IOException("Chunk offset atom too small for " + numChunks + " chunks");
+        }
+        chunkOffsets = new long[(int)numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int position = start + 8 + entrySize * i;
+            chunkOffsets[i] = is64 ? buffer.getLong(position) :
+                    buffer.getInt(position) & 0xFFFFFFFFL;
+        }
+    }
+
+    private static void checkWAV(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        WAVParser wav = WAVParser.parse(channel);
+        if (!wav.isPcm16()) {
+            throw new IOException("Not a 16 bits PCM file");
+        }
+        if (wav.getDeclaredFileSize() != fileSize) {
+            throw new IOException("Header size " + wav.getDeclaredFileSize() + " in a file of " +
+                    fileSize + " bytes");
+        }
+        if (wav.getDeclaredDataSize() != fileSize - wav.getDataOffset()) {
+            throw new IOException("data size " + wav.getDeclaredDataSize() + " at " +
+                    wav.getDataOffset() + " in a file of " + fileSize + " bytes");
+        }
+    }
+
+    // Read length bytes of channel at position into the beginning of buffer.
+    private static void read(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.rewind();
+    }
+
+    private static int fourCC(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) |
+                type.charAt(3);
+    }
+
+    private static String typeString(int type) {
+        return new String(new char[] {(char)((type >> 24) & 0xFF), (char)((type >> 16) & 0xFF),
+                (char)((type >> 8) & 0xFF), (char)(type & 0xFF)});
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Writes a 16 bits PCM file (see WAVHeader) through a FileChannel, from views of the samples.
+// The header is written first, for the number of samples given when creating the file: Wave64
+// for .w64 files, otherwise RIFF/WAVE, or RF64 if the samples do not fit in a RIFF file (more
+// than 4GB). Missing samples are replaced by 0s when the file is closed.
+// Mono samples are written as they are. The channels of stereo samples are swapped through a
+// single scratch buffer (see swapLeftRightChannels()).
+class WAVFileWriter {
+    private static final int SCRATCH_SIZE = 1 << 20;  // in bytes.
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int channels;
+    private long numBytes;  // number of bytes of samples expected.
+    private long numBytesWritten;  // number of bytes of samples written so far.
+    private short[] scratch;  // stereo samples being swapped.
+    private ByteBuffer swapped;  // the swapped samples.
+
+    public WAVFileWriter(File file, int sampleRate, int channels, long numSamples)
+            throws IOException {
+        this.channels = channels;
+        numBytes = numSamples * channels * 2;  // Each sample is coded with a short.
+        int format = file.getName().toLowerCase().endsWith(".w64") ?
+                WAVHeader.FORMAT_W64 : WAVHeader.FORMAT_WAV;
+        format = WAVHeader.getFormat(channels, numSamples, format);
+        this.file = new RandomAccessFile(file, "rw");
+        try {
+            this.file.setLength(0);
+            channel = this.file.getChannel();
+            writeFully(ByteBuffer.wrap(
+                    WAVHeader.getWAVHeader(sampleRate, channels, numSamples, format)));
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    // Number of bytes of samples written so far.
+    public long getNumBytesWritten() {
+        return numBytesWritten;
+    }
+
+    // Write the samples between the position and the limit of samples (16 bits, little endian,
+    // channels interleaved). The position of samples is moved to the limit. Samples after the
+    // expected number of samples are dropped.
+    public void write(ByteBuffer samples) throws IOException {
+        int limit = samples.limit();
+        samples.limit(samples.position() + (int)Math.min(samples.remaining(),
+                numBytes - numBytesWritten));
+        if (channels != 2) {
+            numBytesWritten += writeFully(samples);
+        } else {
+            if (scratch == null) {
+                scratch = new short[SCRATCH_SIZE / 2];
+                swapped = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+                swapped.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer view = samples.duplicate();
+            view.order(ByteOrder.LITTLE_ENDIAN);
+            while (view.hasRemaining()) {
+                // Bulk copy the samples to the scratch array, swap, and bulk copy them back.
+                int length = Math.min(view.remaining(), SCRATCH_SIZE) / 2;
+                view.asShortBuffer().get(scratch, 0, length);
+                view.position(view.position() + 2 * length);
+                swapLeftRightChannels(scratch, length);
+                swapped.clear();
+                swapped.asShortBuffer().put(scratch, 0, length);
+                swapped.limit(2 * length);
+                numBytesWritten += writeFully(swapped);
+            }
+            samples.position(samples.limit());
+        }
+        samples.limit(limit);
+    }
+
+    // Copy numBytes bytes of samples from input, starting at position, without reading them.
+    // Only for samples which do not need to be reordered (i.e. not stereo).
+    public void transferFrom(FileChannel input, long position, long numBytes) throws IOException {
+        numBytes = Math.min(numBytes, this.numBytes - numBytesWritten);
+        long numBytesCopied = 0;
+        while (numBytesCopied < numBytes) {
+            long count = input.transferTo(position + numBytesCopied, numBytes - numBytesCopied,
+                    channel);
+            if (count <= 0) {
+                break;  // The input file has been truncated.
+            }
+            numBytesCopied += count;
+        }
+        numBytesWritten += numBytesCopied;
+    }
+
+    // Pad the samples with 0s up to the expected number of samples (this should not happen),
+    // and close the file.
+    public void close() throws IOException {
+        try {
+            ByteBuffer zeros = ByteBuffer.allocate(4096);
+            while (numBytesWritten < numBytes) {
+                zeros.clear();
+                zeros.limit((int)Math.min(zeros.capacity(), numBytes - numBytesWritten));
+                numBytesWritten += writeFully(zeros);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    // Close the file, as it is (e.g. after an error).
+    public void abort() {
+        IOUtils.closeQuietly(file);
+    }
+
+    // Method used to swap the left and right channels (needed for stereo WAV files).
+    // samples contains length values of PCM data: {sample 1 right, sample 1 left, sample 2 right,
+    // etc.}. When done, it will contain {sample 1 left, sample 1 right, sample 2 left, etc.}
+    private static void swapLeftRightChannels(short[] samples, int length) {
+        for (int i = 0; i + 1 < length; i += 2) {
+            short right = samples[i];
+            samples[i] = samples[i + 1];
+            samples[i + 1] = right;
+        }
+    }
+
+    // Write the remaining bytes of buffer. Returns the number of bytes written.
+    private int writeFully(ByteBuffer buffer) throws IOException {
+        int numBytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return numBytes;
+    }
+}
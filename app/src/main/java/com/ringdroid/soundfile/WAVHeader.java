@@ -16,30 +16,83 @@
 
 package com.ringdroid.soundfile;
 
+// Header of a 16 bits PCM file, in one of the following formats:
+//  - FORMAT_WAV: the usual RIFF/WAVE header, whose sizes are 32 bits.
+//  - FORMAT_RF64: the EBU Tech 3306 extension of RIFF/WAVE, whose 64 bits sizes are in a 'ds64'
+//    chunk (the RIFF and data sizes are then 0xFFFFFFFF). Also stored in .wav files.
+//  - FORMAT_W64: Sony Wave64 (.w64 files), where chunks are identified by GUIDs and all the sizes
+//    are 64 bits.
+// In all cases the samples follow the header, up to the end of the file.
 public class WAVHeader {
+    public static final int FORMAT_WAV = 0;
+    public static final int FORMAT_RF64 = 1;
+    public static final int FORMAT_W64 = 2;
+
+    // Largest data chunk of a RIFF/WAVE file: the RIFF size (data + 36 bytes) is 32 bits.
+    static final long MAX_WAV_DATA_SIZE = 0xFFFFFFFFL - 36;
+
+    // GUIDs of the Wave64 chunks (in file order), and of the RIFF chunks they replace.
+    static final byte[] W64_RIFF = {'r', 'i', 'f', 'f', 0x2E, (byte)0x91, (byte)0xCF, 0x11,
+            (byte)0xA5, (byte)0xD6, 0x28, (byte)0xDB, 0x04, (byte)0xC1, 0, 0};
+    static final byte[] W64_WAVE = w64Guid('w', 'a', 'v', 'e');
+    static final byte[] W64_FMT = w64Guid('f', 'm', 't', ' ');
+    static final byte[] W64_DATA = w64Guid('d', 'a', 't', 'a');
+
     private byte[] header;          // the complete header.
+    private int format;             // FORMAT_WAV, FORMAT_RF64 or FORMAT_W64.
     private int sampleRate;         // sampling frequency in Hz (e.g. 44100).
     private int channels;           // number of channels.
-    private int numSamples;         // total number of samples per channel.
+    private long numSamples;        // total number of samples per channel.
     private int numBytesPerSample;  // number of bytes per sample, all channels included.
 
-    public WAVHeader(int sampleRate, int numChannels, int numSamples) {
+    // Create a RIFF/WAVE header, or an RF64 header if the samples do not fit in a RIFF file.
+    public WAVHeader(int sampleRate, int numChannels, long numSamples) {
+        this(sampleRate, numChannels, numSamples,
+                getFormat(numChannels, numSamples, FORMAT_WAV));
+    }
+
+    public WAVHeader(int sampleRate, int numChannels, long numSamples, int format) {
         this.sampleRate = sampleRate;
         channels = numChannels;
         this.numSamples = numSamples;
+        this.format = format;
         numBytesPerSample = 2 * channels;  // assuming 2 bytes per sample (for 1 channel)
         header = null;
-        setHeader();
+        if (format == FORMAT_W64) {
+            setW64Header();
+        } else if (format == FORMAT_RF64) {
+            setRF64Header();
+        } else {
+            setHeader();
+        }
     }
 
     public byte[] getWAVHeader() {
         return header;
     }
 
-    public static byte[] getWAVHeader(int sampleRate, int numChannels, int numSamples) {
+    public int getFormat() {
+        return format;
+    }
+
+    public static byte[] getWAVHeader(int sampleRate, int numChannels, long numSamples) {
         return new WAVHeader(sampleRate, numChannels, numSamples).header;
     }
 
+    public static byte[] getWAVHeader(int sampleRate, int numChannels, long numSamples,
+            int format) {
+        return new WAVHeader(sampleRate, numChannels, numSamples, format).header;
+    }
+
+    // Format to use for numSamples samples of numChannels channels, when format is preferred:
+    // FORMAT_WAV becomes FORMAT_RF64 when the samples do not fit in a RIFF/WAVE file.
+    public static int getFormat(int numChannels, long numSamples, int format) {
+        if (format == FORMAT_WAV && numSamples * numChannels * 2 > MAX_WAV_DATA_SIZE) {
+            return FORMAT_RF64;
+        }
+        return format;
+    }
+
     @Override
     public String toString() {
         String str = "";
@@ -65,18 +118,17 @@ public class WAVHeader {
     }
 
     private void setHeader() {
-        byte[] header = new byte[46];
+        byte[] header = new byte[44];
         int offset = 0;
-        int size;
+        long size;
 
         // set the RIFF chunk
         System.arraycopy(new byte[] {'R', 'I', 'F', 'F'}, 0, header, offset, 4);
         offset += 4;
-        size = 36 + numSamples * numBytesPerSample;
-        header[offset++] = (byte)(size & 0xFF);
-        header[offset++] = (byte)((size >> 8) & 0xFF);
-        header[offset++] = (byte)((size >> 16) & 0xFF);
-        header[offset++] = (byte)((size >> 24) & 0xFF);
+        // The sizes are unsigned 32 bits values. Larger files get the maximum value, which most
+        // readers take as "until the end of the file" (FORMAT_RF64 should be used instead).
+        size = Math.min(36 + numSamples * numBytesPerSample, 0xFFFFFFFFL);
+        offset = putLE(header, offset, size, 4);
         System.arraycopy(new byte[] {'W', 'A', 'V', 'E'}, 0, header, offset, 4);
         offset += 4;
 
@@ -85,6 +137,81 @@ public class WAVHeader {
         offset += 4;
         System.arraycopy(new byte[] {0x10, 0, 0, 0}, 0, header, offset, 4);  // chunk size = 16
         offset += 4;
+        offset = setFormat(header, offset);
+
+        // set the beginning of the data chunk
+        System.arraycopy(new byte[] {'d', 'a', 't', 'a'}, 0, header, offset, 4);
+        offset += 4;
+        size = Math.min(numSamples * numBytesPerSample, 0xFFFFFFFFL);
+        putLE(header, offset, size, 4);
+
+        this.header = header;
+    }
+
+    private void setRF64Header() {
+        byte[] header = new byte[80];
+        int offset = 0;
+        long dataSize = numSamples * numBytesPerSample;
+
+        // set the RF64 chunk, whose size is in the ds64 chunk.
+        System.arraycopy(new byte[] {'R', 'F', '6', '4'}, 0, header, offset, 4);
+        offset += 4;
+        offset = putLE(header, offset, 0xFFFFFFFFL, 4);
+        System.arraycopy(new byte[] {'W', 'A', 'V', 'E'}, 0, header, offset, 4);
+        offset += 4;
+
+        // set the ds64 chunk: the 64 bits RIFF and data sizes, and the number of samples.
+        System.arraycopy(new byte[] {'d', 's', '6', '4'}, 0, header, offset, 4);
+        offset += 4;
+        offset = putLE(header, offset, 28, 4);
+        offset = putLE(header, offset, header.length - 8 + dataSize, 8);
+        offset = putLE(header, offset, dataSize, 8);
+        offset = putLE(header, offset, numSamples, 8);
+        offset = putLE(header, offset, 0, 4);  // no other chunk size in the table.
+
+        // set the fmt chunk
+        System.arraycopy(new byte[] {'f', 'm', 't', ' '}, 0, header, offset, 4);
+        offset += 4;
+        offset = putLE(header, offset, 16, 4);
+        offset = setFormat(header, offset);
+
+        // set the beginning of the data chunk, whose size is in the ds64 chunk.
+        System.arraycopy(new byte[] {'d', 'a', 't', 'a'}, 0, header, offset, 4);
+        offset += 4;
+        putLE(header, offset, 0xFFFFFFFFL, 4);
+
+        this.header = header;
+    }
+
+    private void setW64Header() {
+        byte[] header = new byte[104];
+        int offset = 0;
+        long dataSize = numSamples * numBytesPerSample;
+
+        // set the riff chunk. Wave64 sizes include the 24 bytes chunk header (GUID and size).
+        System.arraycopy(W64_RIFF, 0, header, offset, 16);
+        offset += 16;
+        offset = putLE(header, offset, header.length + dataSize, 8);
+        System.arraycopy(W64_WAVE, 0, header, offset, 16);
+        offset += 16;
+
+        // set the fmt chunk (40 bytes, so the next chunk is aligned on 8 bytes).
+        System.arraycopy(W64_FMT, 0, header, offset, 16);
+        offset += 16;
+        offset = putLE(header, offset, 24 + 16, 8);
+        offset = setFormat(header, offset);
+
+        // set the beginning of the data chunk
+        System.arraycopy(W64_DATA, 0, header, offset, 16);
+        offset += 16;
+        putLE(header, offset, 24 + dataSize, 8);
+
+        this.header = header;
+    }
+
+    // Set the 16 bytes PCMWAVEFORMAT structure, common to all the formats, at offset.
+    // Return the offset following it.
+    private int setFormat(byte[] header, int offset) {
         System.arraycopy(new byte[] {1, 0}, 0, header, offset, 2);  // format = 1 for PCM
         offset += 2;
         header[offset++] = (byte)(channels & 0xFF);
@@ -100,18 +227,24 @@ public class WAVHeader {
         header[offset++] = (byte)((byteRate >> 24) & 0xFF);
         header[offset++] = (byte)(numBytesPerSample & 0xFF);
         header[offset++] = (byte)((numBytesPerSample >> 8) & 0xFF);
-        System.arraycopy(new byte[] {0x10, 0}, 0, header, offset, 2);
+        System.arraycopy(new byte[] {0x10, 0}, 0, header, offset, 2);  // 16 bits per sample
         offset += 2;
+        return offset;
+    }
 
-        // set the beginning of the data chunk
-        System.arraycopy(new byte[] {'d', 'a', 't', 'a'}, 0, header, offset, 4);
-        offset += 4;
-        size = numSamples * numBytesPerSample;
-        header[offset++] = (byte)(size & 0xFF);
-        header[offset++] = (byte)((size >> 8) & 0xFF);
-        header[offset++] = (byte)((size >> 16) & 0xFF);
-        header[offset++] = (byte)((size >> 24) & 0xFF);
+    // Write the numBytes least significant bytes of value at offset, little endian.
+    // Return the offset following them.
+    private static int putLE(byte[] header, int offset, long value, int numBytes) {
+        for (int i = 0; i < numBytes; i++) {
+            header[offset++] = (byte)((value >> (8 * i)) & 0xFF);
+        }
+        return offset;
+    }
 
-        this.header = header;
+    // GUID of a Wave64 chunk: the FOURCC of the RIFF chunk, followed by a common suffix.
+    private static byte[] w64Guid(char c1, char c2, char c3, char c4) {
+        return new byte[] {(byte)c1, (byte)c2, (byte)c3, (byte)c4, (byte)0xF3, (byte)0xAC,
+                (byte)0xD3, 0x11, (byte)0x8C, (byte)0xD1, 0, (byte)0xC0, 0x4F, (byte)0x8E,
+                (byte)0xDB, (byte)0x8A};
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Parser of the RIFF header of a WAVE file (the reverse of WAVHeader).
+// The chunks of the file are walked (each chunk being padded to an even size) until both the
+// 'fmt ' and 'data' chunks are found. Other chunks (e.g. 'LIST' or 'fact') are skipped.
+// RF64 files are parsed the same way, their 64 bits sizes being read from the 'ds64' chunk.
+// Wave64 files have the same chunks, identified by GUIDs, with 64 bits sizes aligned on 8 bytes.
+// WAVE_FORMAT_EXTENSIBLE files are reported with the format of their sub-format GUID.
+class WAVParser {
+    public static final int WAVE_FORMAT_PCM = 1;
+    public static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private static final int RIFF = fourCC("RIFF");
+    private static final int WAVE = fourCC("WAVE");
+    private static final int FMT = fourCC("fmt ");
+    private static final int DATA = fourCC("data");
+    private static final int RF64 = fourCC("RF64");
+    private static final int DS64 = fourCC("ds64");
+    // Last 14 bytes of the KSDATAFORMAT_SUBTYPE_* GUIDs (the first 2 are the format tag).
+    private static final byte[] GUID_SUFFIX = {
+        0, 0, 0, 0, 0x10, 0, (byte)0x80, 0, 0, (byte)0xAA, 0, 0x38, (byte)0x9B, 0x71};
+
+    private int format;
+    private int channels;
+    private int sampleRate;
+    private int blockAlign;  // number of bytes per sample, all channels included.
+    private int bitsPerSample;
+    private long dataOffset;  // offset of the first sample in the file.
+    private long dataSize;  // number of bytes of samples.
+    private int container = WAVHeader.FORMAT_WAV;  // one of the WAVHeader formats.
+    private long declaredFileSize = -1;  // file size according to the header, -1 if unknown.
+    private long declaredDataSize = -1;  // data size according to the header, -1 if unknown.
+
+    private WAVParser() {
+    }
+
+    // Parse the header of the WAVE file read by channel.
+    // Throws an IOException if it is not a valid WAVE file.
+    public static WAVParser parse(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(40);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        WAVParser wav = new WAVParser();
+        if (fileSize >= 40) {
+            read(channel, buffer, 0, 40);
+            if (startsWith(buffer, 0, WAVHeader.W64_RIFF) &&
+                    startsWith(buffer, 24, WAVHeader.W64_WAVE)) {
+                wav.container = WAVHeader.FORMAT_W64;
+                wav.declaredFileSize = buffer.getLong(16);
+                wav.parseW64(channel, buffer, fileSize);
+                return wav;
+            }
+        }
+        read(channel, buffer, 0, 12);
+        int riff = buffer.getInt(0);
+        if ((riff != RIFF && riff != RF64) || buffer.getInt(8) != WAVE) {
+            throw new IOException("Not a RIFF/WAVE file");
+        }
+        if (riff == RIFF) {
+            wav.declaredFileSize = 8 + (buffer.getInt(4) & 0xFFFFFFFFL);
+        } else {
+            wav.container = WAVHeader.FORMAT_RF64;
+        }
+
+        boolean fmtFound = false;
+        boolean dataFound = false;
+        long ds64DataSize = -1;
+        long position = 12;
+        while (position + 8 <= fileSize && !(fmtFound && dataFound)) {
+            read(channel, buffer, position, 8);
+            int id = buffer.getInt(0);
+            long size = buffer.getInt(4) & 0xFFFFFFFFL;
+            if (id == DS64 && wav.container == WAVHeader.FORMAT_RF64 && size >= 24) {
+                read(channel, buffer, position + 8, 24);
+                wav.declaredFileSize = 8 + buffer.getLong(0);
+                ds64DataSize = buffer.getLong(8);
+            } else if (id == FMT) {
+                if (size < 16) {
+                    throw new IOException("Invalid fmt chunk size: " + size);
+                }
+                read(channel, buffer, position + 8, (int)Math.min(size, buffer.capacity()));
+                wav.parseFormat(buffer, (int)Math.min(size, buffer.capacity()));
+                fmtFound = true;
+            } else if (id == DATA) {
+                wav.dataOffset = position + 8;
+                if (size == 0xFFFFFFFFL && ds64DataSize >= 0) {
+                    size = ds64DataSize;  // RF64: the real size is in the ds64 chunk.
+                }
+                wav.setDataSize(size, fileSize);
+                dataFound = true;
+            }
+            position += 8 + size + (size & 1);  // chunks are padded to an even size.
+        }
+        wav.checkChunks(fmtFound, dataFound);
+        return wav;
+    }
+
+    // Parse the chunks of a Wave64 file, following the riff and wave GUIDs.
+    private void parseW64(FileChannel channel, ByteBuffer buffer, long fileSize)
+            throws IOException {
+        boolean fmtFound = false;
+        boolean dataFound = false;
+        long position = 40;
+        while (position + 24 <= fileSize && !(fmtFound && dataFound)) {
+            read(channel, buffer, position, 24);
+            long size = buffer.getLong(16);  // includes the 24 bytes chunk header.
+            if (size < 24) {
+                throw new IOException("Invalid Wave64 chunk size: " + size);
+            }
+            if (startsWith(buffer, 0, WAVHeader.W64_FMT)) {
+                if (size < 24 + 16) {
+                    throw new IOException("Invalid fmt chunk size: " + size);
+                }
+                int formatSize = (int)Math.min(size - 24, buffer.capacity());
+                read(channel, buffer, position + 24, formatSize);
+                parseFormat(buffer, formatSize);
+                fmtFound = true;
+            } else if (startsWith(buffer, 0, WAVHeader.W64_DATA)) {
+                dataOffset = position + 24;
+                setDataSize(size - 24, fileSize);
+                dataFound = true;
+            }
+            position += (size + 7) & ~7L;  // chunks are aligned on 8 bytes.
+        }
+        checkChunks(fmtFound, dataFound);
+    }
+
+    // Set the data size from the size of the data chunk.
+    private void setDataSize(long size, long fileSize) {
+        // Streamed files may not have a valid data size: keep what the file contains.
+        dataSize = fileSize - dataOffset;
+        if (size != 0 && size != 0xFFFFFFFFL) {
+            declaredDataSize = size;
+            dataSize = Math.min(size, dataSize);
+        }
+    }
+
+    private void checkChunks(boolean fmtFound, boolean dataFound) throws IOException {
+        if (!fmtFound || !dataFound) {
+            throw new IOException("Missing " + (fmtFound ? "data" : "fmt") + " chunk");
+        }
+        if (blockAlign > 0) {
+            dataSize -= dataSize % blockAlign;  // drop a truncated last sample.
+        }
+    }
+
+    // Format tag (e.g. WAVE_FORMAT_PCM), or the sub-format of WAVE_FORMAT_EXTENSIBLE files.
+    public int getFormat() {
+        return format;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    // WAVHeader.FORMAT_WAV, FORMAT_RF64 or FORMAT_W64.
+    public int getContainer() {
+        return container;
+    }
+
+    // Size of the file according to the RIFF (or ds64, or Wave64 riff) chunk, -1 if unknown.
+    public long getDeclaredFileSize() {
+        return declaredFileSize;
+    }
+
+    // Size of the data chunk according to the header, -1 if unknown (e.g. streamed files).
+    public long getDeclaredDataSize() {
+        return declaredDataSize;
+    }
+
+    // Number of samples per channel.
+    public long getNumSamples() {
+        return (blockAlign > 0) ? dataSize / blockAlign : 0;
+    }
+
+    // Whether the samples are 16 bits little endian PCM, channels interleaved, i.e. the format
+    // of the samples of a SoundFile.
+    public boolean isPcm16() {
+        return format == WAVE_FORMAT_PCM && bitsPerSample == 16 && channels > 0 &&
+                blockAlign == 2 * channels && sampleRate > 0;
+    }
+
+    private void parseFormat(ByteBuffer buffer, int size) throws IOException {
+        format = buffer.getShort(0) & 0xFFFF;
+        channels = buffer.getShort(2) & 0xFFFF;
+        sampleRate = buffer.getInt(4);
+        blockAlign = buffer.getShort(12) & 0xFFFF;
+        bitsPerSample = buffer.getShort(14) & 0xFFFF;
+        if (format == WAVE_FORMAT_EXTENSIBLE) {
+            // cbSize, valid bits per sample, channel mask and the sub-format GUID.
+            if (size < 40 || (buffer.getShort(16) & 0xFFFF) < 22) {
+                throw new IOException("Invalid WAVE_FORMAT_EXTENSIBLE fmt chunk");
+            }
+            for (int i = 0; i < GUID_SUFFIX.length; i++) {
+                if (buffer.get(26 + i) != GUID_SUFFIX[i]) {
+                    format = WAVE_FORMAT_EXTENSIBLE;  // unknown sub-format.
+                    return;
+                }
+            }
+            format = buffer.getShort(24) & 0xFFFF;
+        }
+    }
+
+    // Read length bytes of channel at position into the beginning of buffer.
+    private static void read(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset, byte[] guid) {
+        for (int i = 0; i < guid.length; i++) {
+            if (buffer.get(offset + i) != guid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int fourCC(String id) {
+        // Read as a little endian int, like the rest of the header.
+        return id.charAt(0) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+// Envelope of the samples of a sound file, from which its waveform is drawn: for each block of
+// getSamplesPerBlock() samples and each channel, the minimum, maximum and RMS values of the
+// samples, on the same scale as the samples. It keeps the sign and the energy of the signal,
+// separately for each channel, in 6 bytes per block and channel.
+// The arrays are indexed by block * getChannels() + channel, and may be longer than
+// getNumBlocks() * getChannels() while the file is being decoded.
+public class WaveformEnvelope {
+    private int channels;
+    private int samplesPerBlock;
+    private int numBlocks;
+    private short[] mins;
+    private short[] maxs;
+    private short[] rms;
+
+    WaveformEnvelope(int channels, int samplesPerBlock, int numBlocks,
+            short[] mins, short[] maxs, short[] rms) {
+        this.channels = channels;
+        this.samplesPerBlock = samplesPerBlock;
+        this.numBlocks = numBlocks;
+        this.mins = mins;
+        this.maxs = maxs;
+        this.rms = rms;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSamplesPerBlock() {
+        return samplesPerBlock;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getMin(int block, int channel) {
+        return mins[block * channels + channel];
+    }
+
+    public int getMax(int block, int channel) {
+        return maxs[block * channels + channel];
+    }
+
+    public int getRms(int block, int channel) {
+        return rms[block * channels + channel];
+    }
+
+    // Largest absolute value of the samples, between 1 and Short.MAX_VALUE.
+    public int getPeak() {
+        int peak = 1;
+        for (int i = 0; i < numBlocks * channels; i++) {
+            peak = Math.max(peak, Math.max(-mins[i], maxs[i]));
+        }
+        return Math.min(peak, Short.MAX_VALUE);
+    }
+
+    public short[] getMins() {
+        return mins;
+    }
+
+    public short[] getMaxs() {
+        return maxs;
+    }
+
+    public short[] getRms() {
+        return rms;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+// Waveform peaks of an audio file, saved in a small .peaks file when the file is decoded so that
+// the waveform can be displayed again without decoding the file.
+// A .peaks file contains a header followed by 3 bytes per frame (of getSamplesPerFrame() samples)
+// and channel:
+//  - 'RDPK' magic, version, source identity (path, size and last modification time),
+//    sample rate, number of channels, samples per frame, number of frames and the largest
+//    absolute sample value of the file (the peak).
+//  - for each frame and channel: the min, max and RMS values of the envelope (see
+//    WaveformEnvelope), as signed bytes relative to the peak (127 is the peak).
+// A 5 minutes stereo song takes about 80kB, so the peaks of thousands of files can be kept around.
+public class WaveformPeaks {
+    private static final int MAGIC = ('R' << 24) | ('D' << 16) | ('P' << 8) | 'K';
+    private static final int VERSION = 2;
+    private static final long MAX_SIZE_BYTES = 64L << 20;
+
+    private int sampleRate;
+    private WaveformEnvelope envelope;
+
+    WaveformPeaks(int sampleRate, WaveformEnvelope envelope) {
+        this.sampleRate = sampleRate;
+        this.envelope = envelope;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return envelope.getChannels();
+    }
+
+    public int getSamplesPerFrame() {
+        return envelope.getSamplesPerBlock();
+    }
+
+    public int getNumFrames() {
+        return envelope.getNumBlocks();
+    }
+
+    // The envelope of the file, with one block per frame. Its values are only accurate to 1/127 of
+    // the peak of the file.
+    public WaveformEnvelope getEnvelope() {
+        return envelope;
+    }
+
+    // Return the peaks saved for source in directory, or null if there are none (or if source has
+    // been modified since).
+    static WaveformPeaks read(File directory, File source) {
+        String key = PcmCache.getKey(source);
+        File file = getFile(directory, key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                return null;
+            }
+            int sampleRate = in.readInt();
+            int channels = in.readInt();
+            int samplesPerFrame = in.readInt();
+            int numFrames = in.readInt();
+            int peak = in.readInt();
+            short[] mins = new short[numFrames * channels];
+            short[] maxs = new short[mins.length];
+            short[] rms = new short[mins.length];
+            for (int i = 0; i < mins.length; i++) {
+                mins[i] = (short)(in.readByte() * peak / 127);
+                maxs[i] = (short)(in.readByte() * peak / 127);
+                rms[i] = (short)(in.readByte() * peak / 127);
+            }
+            file.setLastModified(System.currentTimeMillis());  // Mark as recently used.
+            return new WaveformPeaks(sampleRate, new WaveformEnvelope(
+                    channels, samplesPerFrame, numFrames, mins, maxs, rms));
+        } catch (IOException e) {
+            Log.w("WaveformPeaks", "read() invalid peaks file " + file + "\n" + e.toString());
+            file.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    // Save the peaks of source in directory.
+    void write(File directory, File source) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        String key = PcmCache.getKey(source);
+        File file = getFile(directory, key);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            int length = envelope.getNumBlocks() * envelope.getChannels();
+            short[] mins = envelope.getMins();
+            short[] maxs = envelope.getMaxs();
+            short[] rms = envelope.getRms();
+            int peak = envelope.getPeak();
+            out.writeInt(sampleRate);
+            out.writeInt(envelope.getChannels());
+            out.writeInt(envelope.getSamplesPerBlock());
+            out.writeInt(envelope.getNumBlocks());
+            out.writeInt(peak);
+            for (int i = 0; i < length; i++) {
+                out.writeByte(quantize(mins[i], peak));
+                out.writeByte(quantize(maxs[i], peak));
+                out.writeByte(quantize(rms[i], peak));
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w("WaveformPeaks", "write() failed to write " + file + "\n" + e.toString());
+            IOUtils.closeQuietly(out);
+            tmpFile.delete();
+            return;
+        }
+        PcmCache.trim(directory, MAX_SIZE_BYTES);
+    }
+
+    private static int quantize(int value, int peak) {
+        return Math.round(value * 127.0f / peak);
+    }
+
+    private static File getFile(File directory, String key) {
+        return new File(directory, PcmCache.hash(key) + ".peaks");
+    }
+}
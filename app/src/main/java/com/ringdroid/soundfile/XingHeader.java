@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+
+// Xing header frame written at the beginning of an MP3 file made of frames copied from another
+// file. It is a silent layer III frame carrying:
+//  - the Xing header: number of frames, number of bytes, and a 100 entries seek table.
+//  - a LAME tag with the encoder delay and padding, i.e. the number of samples to drop at the
+//    beginning and at the end of the stream, so that the file plays exactly the selection.
+public class XingHeader {
+    private static final int XING_SIZE = 120;  // "Xing", flags, frames, bytes, TOC and quality.
+    private static final int LAME_TAG_SIZE = 36;
+
+    // Largest delay or padding the LAME tag can hold (12 bits each).
+    // As written by LAME, and read by the players which support gapless playback, the delay field
+    // is the encoder delay only: the MP3 decoders output each sample DECODER_DELAY samples late,
+    // so the players skip delay + DECODER_DELAY decoded samples at the beginning of the stream,
+    // and drop padding - DECODER_DELAY decoded samples at the end. The constructor takes the
+    // numbers of decoded samples to skip and drop, and converts them: at most MAX_SKIP decoded
+    // samples can be skipped (and at least DECODER_DELAY always are), and at most MAX_DROP can be
+    // dropped.
+    public static final int MAX_DELAY = 0xFFF;
+    public static final int DECODER_DELAY = 528 + 1;
+    public static final int MAX_SKIP = MAX_DELAY + DECODER_DELAY;
+    public static final int MAX_DROP = MAX_DELAY - DECODER_DELAY;
+
+    private byte[] header;  // the complete frame.
+
+    // Create the Xing frame of a file made of the frames [firstFrame, lastFrame] of index, and
+    // whose first skip and last drop decoded samples must not be played. skip must be within
+    // [0, MAX_SKIP] (below DECODER_DELAY, DECODER_DELAY samples are skipped anyway), and drop
+    // within [0, MAX_DROP].
+    public XingHeader(MP3FrameIndex index, int firstFrame, int lastFrame, int skip, int drop) {
+        if (skip < 0 || skip > MAX_SKIP || drop < 0 || drop > MAX_DROP) {
+            throw new IllegalArgumentException("Invalid skip " + skip + " or drop " + drop);
+        }
+        int delay = Math.max(0, skip - DECODER_DELAY);
+        int padding = drop + DECODER_DELAY;
+        int first = index.getFirstHeader();
+        int sideInfoSize = MP3FrameIndex.getSideInfoSize(first);
+        // Same stream parameters as the copied frames, no CRC, no padding, and the lowest bit
+        // rate for which the tags fit in the frame.
+        int frameHeader = 0;
+        int frameSize = 0;
+        for (int bitRateIndex = 1; bitRateIndex < 15; bitRateIndex++) {
+            frameHeader = (first & 0xFFFE0CFF) | 0x10000 | (bitRateIndex << 12);
+            frameSize = MP3FrameIndex.getHeaderFrameLength(frameHeader);
+            if (frameSize >= 4 + sideInfoSize + XING_SIZE + LAME_TAG_SIZE) {
+                break;
+            }
+        }
+
+        int numFrames = lastFrame - firstFrame + 1;
+        long dataStart = index.getFrameOffset(firstFrame);
+        long dataSize = index.getFrameOffset(lastFrame) + index.getFrameLength(lastFrame) -
+                dataStart;
+        long totalSize = frameSize + dataSize;
+
+        ByteBuffer buffer = ByteBuffer.allocate(frameSize);  // big endian, zero filled.
+        buffer.putInt(frameHeader);
+        buffer.position(4 + sideInfoSize);  // the side information is all 0s: a silent frame.
+        buffer.put(new byte[] {'X', 'i', 'n', 'g'});
+        buffer.putInt(0x0F);  // frames, bytes, TOC and quality fields present.
+        buffer.putInt(numFrames);
+        buffer.putInt((int)Math.min(totalSize, 0xFFFFFFFFL));
+        // TOC: for each percent of the duration, the offset of the frame played at that time, as
+        // a fraction of the file size (in 1/256).
+        for (int i = 0; i < 100; i++) {
+            int frame = firstFrame + (int)((long)numFrames * i / 100);
+            long offset = frameSize + index.getFrameOffset(frame) - dataStart;
+            buffer.put((byte)Math.min(255, offset * 256 / totalSize));
+        }
+        buffer.putInt(0);  // quality.
+
+        // LAME tag.
+        int lameTag = buffer.position();
+        buffer.put(new byte[] {'L', 'A', 'M', 'E', ' ', ' ', ' ', ' ', ' '});  // encoder.
+        buffer.position(lameTag + 21);
+        buffer.put((byte)(delay >> 4));
+        buffer.put((byte)(((delay & 0x0F) << 4) | (padding >> 8)));
+        buffer.put((byte)padding);
+        buffer.position(lameTag + 28);
+        buffer.putInt((int)Math.min(totalSize, 0xFFFFFFFFL));  // music length.
+        buffer.putShort((short)0);  // music CRC, unknown.
+        buffer.putShort((short)crc16(buffer.array(), buffer.position()));  // tag CRC.
+
+        header = buffer.array();
+    }
+
+    public byte[] getXingHeader() {
+        return header;
+    }
+
+    public static byte[] getXingHeader(MP3FrameIndex index, int firstFrame, int lastFrame,
+            int skip, int drop) {
+        return new XingHeader(index, firstFrame, lastFrame, skip, drop).header;
+    }
+
+    // CRC-16 (polynomial 0x8005, reflected) of the first length bytes of data, as used by the
+    // LAME tag.
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return crc;
+    }
+}